@@ -0,0 +1,22 @@
+package cht.cache;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("cht.CacheLookup")
+@Label("Cache Lookup")
+@Description("Lookup of a key through the memory, recently removed and persisted tiers")
+@Category({"CHT", "Cache"})
+@StackTrace(false)
+class CacheLookupEvent extends jdk.jfr.Event {
+	
+	@Label("Key")
+	String key;
+	
+	@Label("Tier")
+	@Description("Tier the key was found in: memory, recently_removed, disk or none")
+	String tier;
+}
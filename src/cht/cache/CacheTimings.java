@@ -0,0 +1,52 @@
+package cht.cache;
+
+import java.util.Arrays;
+
+/**
+ * Time the current thread has spent in every phase of the cache operations since the last reset.
+ * Lets the request handler break down the time of a command without passing state through the cache API.
+ * */
+public class CacheTimings {
+	
+	public enum Phase {
+		LOCK_WAIT, // Waiting for the cache read/write lock, or for the partition thread
+		QUEUE_UPDATE, // Moving keys in the LRU order
+		DISK_LOAD, // Loading and deserializing the persisted data
+		DISK_PERSIST // Serializing and writing the persisted data
+	}
+	
+	private static final ThreadLocal<long[]> PHASE_NANOS = 
+			ThreadLocal.withInitial(() -> new long[Phase.values().length]);
+	
+	private CacheTimings(){
+	}
+	
+	/**
+	 * Start measuring a new request on the current thread
+	 * */
+	public static void reset(){
+		Arrays.fill(PHASE_NANOS.get(), 0);
+	}
+	
+	public static long getNanos(Phase phase){
+		return PHASE_NANOS.get()[phase.ordinal()];
+	}
+	
+	static void record(Phase phase, long nanos){
+		PHASE_NANOS.get()[phase.ordinal()] += nanos;
+	}
+	
+	/**
+	 * Copy of the times of the current thread, to be added to the thread the work was done for
+	 * */
+	static long[] capture(){
+		return PHASE_NANOS.get().clone();
+	}
+	
+	static void add(long[] phaseNanos){
+		long[] currentNanos = PHASE_NANOS.get();
+		for (int i = 0; i < currentNanos.length; i++){
+			currentNanos[i] += phaseNanos[i];
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package cht.cache;
+
+import java.util.List;
+
+/**
+ * Listener for the modifications of the cache, notified while the cache write lock is held so the
+ * notifications are in the exact order the modifications were applied. Partitions of a PartitionedCache take no locks,
+ * they notify from their own threads concurrently, in the order of their own modifications. Implementations must not block.
+ * */
+public interface CacheWriteListener {
+	
+	/**
+	 * Key was associated with a new list of values
+	 * */
+	void onSet(String key, List<String> values);
+	
+	/**
+	 * Value was added to the list associated with the key, from the right or from the left
+	 * */
+	void onAdd(String key, String value, boolean rightAdd);
+	
+	/**
+	 * Value was removed from the list associated with the key, from the right or from the left
+	 * */
+	void onPop(String key, boolean rightPop);
+}
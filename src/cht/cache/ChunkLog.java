@@ -0,0 +1,292 @@
+package cht.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of list chunks persisted on top of the base persisted data. Appending values to a long list
+ * persists only a chunk with the new values instead of rewriting the whole list, the chunks are stitched
+ * with the base list when the key is loaded. The log is folded into the base data on compaction.
+ *
+ * Record format: length(int) and CRC32(int) of the chunk, followed by the chunk: type(byte), key, number of values(int),
+ * values. Strings are length prefixed UTF-8. A record torn by a crash in the middle of an append can only be the last
+ * one, it is dropped on recovery, a bad record followed by a complete one is corruption. Logs written before records were framed hold the bare chunks.
+ * */
+class ChunkLog {
+
+	enum ChunkType {
+		REPLACE, // Values replace the whole list
+		APPEND, // Values are added to the right of the list
+		PREPEND // Values are added to the left of the list
+	}
+
+	static class Chunk {
+		private final String _key;
+		private final ChunkType _type;
+		private final List<String> _values;
+
+		Chunk(String key, ChunkType type, List<String> values){
+			_key = key;
+			_type = type;
+			_values = values;
+		}
+
+		String getKey() {
+			return _key;
+		}
+
+		/**
+		 * Apply the chunk to the list, null list means the key was not persisted before
+		 * */
+		LinkedList<String> applyTo(LinkedList<String> list){
+			if (_type == ChunkType.REPLACE || list == null){
+				return new LinkedList<>(_values);
+			}
+			if (_type == ChunkType.APPEND){
+				list.addAll(_values);
+			} else {
+				list.addAll(0, _values);
+			}
+			return list;
+		}
+	}
+
+	private static final int HEADER_LENGTH = 2 * Integer.BYTES;
+	private static final int MIN_RECORD_LENGTH = 1 + 2 * Integer.BYTES; // Type, key length and number of values
+
+	private final File _logFile;
+	private final boolean _framed; // False for a log written before records were framed, it is only read
+
+	ChunkLog(String logFilePath, boolean framed){
+		_logFile = new File(logFilePath);
+		_framed = framed;
+	}
+
+	long length(){
+		return _logFile.length();
+	}
+
+	/**
+	 * Append the chunks to the end of the log and sync them to disk. If the append fails the log is truncated back
+	 * to its previous length, a torn record in the middle of the log would make all the records after it unreadable.
+	 * */
+	void append(List<Chunk> chunks) throws IOException {
+		try (FileOutputStream fileOut = new FileOutputStream(_logFile, true)) {
+			FileChannel channel = fileOut.getChannel();
+			long previousLength = channel.size();
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+				ByteArrayOutputStream record = new ByteArrayOutputStream();
+				DataOutputStream recordOut = new DataOutputStream(record);
+				CRC32 crc = new CRC32();
+				for (Chunk chunk : chunks){
+					record.reset();
+					recordOut.writeByte(chunk._type.ordinal());
+					writeString(recordOut, chunk._key);
+					recordOut.writeInt(chunk._values.size());
+					for (String value : chunk._values){
+						writeString(recordOut, value);
+					}
+					crc.reset();
+					crc.update(record.toByteArray());
+					out.writeInt(record.size());
+					out.writeInt((int) crc.getValue());
+					record.writeTo(out);
+				}
+				out.flush();
+				fileOut.getFD().sync();
+			} catch (IOException | RuntimeException e) {
+				// Buffered bytes are dropped with the stream, only the ones that reached the file are truncated
+				try {
+					channel.truncate(previousLength);
+					channel.force(true);
+				} catch (IOException truncateException) {
+					e.addSuppressed(truncateException);
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Drop a record torn by a crash in the middle of an append, so new records are appended right after the last
+	 * complete one. Returns the number of bytes dropped. A bad record is only taken for a torn one if no complete record
+	 * follows it, otherwise its length or content was corrupted and IOException is thrown.
+	 * */
+	long recover() throws IOException {
+		if (!_logFile.isFile()){
+			return 0;
+		}
+		long logLength = _logFile.length();
+		long validLength = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_logFile)))) {
+			while (logLength - validLength >= HEADER_LENGTH){
+				int recordLength = in.readInt();
+				int recordCrc = in.readInt();
+				long recordEnd = validLength + HEADER_LENGTH + recordLength;
+				if (recordLength < 0 || recordEnd > logLength){
+					break;
+				}
+				byte[] record = new byte[recordLength];
+				in.readFully(record);
+				if (!isIntact(record, recordCrc)){
+					break;
+				}
+				validLength = recordEnd;
+			}
+		}
+
+		if (validLength < logLength){
+			if (hasRecordAfter(validLength)){
+				throw new IOException("Chunk log " + _logFile + " is corrupted at offset " + validLength + ".");
+			}
+			// Last record was not completely written
+			try (RandomAccessFile logFile = new RandomAccessFile(_logFile, "rw")) {
+				logFile.setLength(validLength);
+				logFile.getFD().sync();
+			}
+		}
+		return logLength - validLength;
+	}
+
+	/**
+	 * Apply all the chunks to the base persisted data
+	 * */
+	void replayAll(Map<String, LinkedList<String>> baseData) throws IOException {
+		for (Chunk chunk : readChunks(null)){
+			baseData.put(chunk._key, chunk.applyTo(baseData.get(chunk._key)));
+		}
+	}
+
+	/**
+	 * Stitch only the chunks of a single key, the rest of the log is skipped without being materialized
+	 * */
+	LinkedList<String> replayKey(String key, LinkedList<String> baseList) throws IOException {
+		LinkedList<String> list = baseList;
+		for (Chunk chunk : readChunks(key)){
+			list = chunk.applyTo(list);
+		}
+		return list;
+	}
+
+	/**
+	 * Read the chunks of the key, or all the chunks if the key is null
+	 * */
+	private List<Chunk> readChunks(String key) throws IOException {
+		List<Chunk> chunks = new ArrayList<>();
+		if (!_logFile.isFile() || _logFile.length() == 0){
+			return chunks;
+		}
+
+		byte[] keyBytes = key == null ? null : key.getBytes(StandardCharsets.UTF_8);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_logFile)))) {
+			for (;;){
+				DataInputStream chunkIn = in;
+				if (_framed){
+					int recordLength;
+					try {
+						recordLength = in.readInt();
+					} catch (EOFException e) {
+						break;
+					}
+					int recordCrc = in.readInt();
+					byte[] record = new byte[recordLength];
+					in.readFully(record);
+					if (!isIntact(record, recordCrc)){
+						throw new IOException("Chunk log " + _logFile + " is corrupted.");
+					}
+					chunkIn = new DataInputStream(new ByteArrayInputStream(record));
+				}
+
+				int type;
+				try {
+					type = chunkIn.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+
+				byte[] chunkKeyBytes = readBytes(chunkIn);
+				int valuesCount = chunkIn.readInt();
+				if (keyBytes != null && !Arrays.equals(keyBytes, chunkKeyBytes)){
+					// Chunk of another key, skip its values
+					if (!_framed){
+						for (int i = 0; i < valuesCount; i++){
+							chunkIn.skipBytes(chunkIn.readInt());
+						}
+					}
+					continue;
+				}
+
+				List<String> values = new ArrayList<>(valuesCount);
+				for (int i = 0; i < valuesCount; i++){
+					values.add(new String(readBytes(chunkIn), StandardCharsets.UTF_8));
+				}
+				chunks.add(new Chunk(new String(chunkKeyBytes, StandardCharsets.UTF_8), ChunkType.values()[type], values));
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * Whether a complete record with a matching checksum starts anywhere after the offset
+	 * */
+	private boolean hasRecordAfter(long offset) throws IOException {
+		byte[] tail;
+		try (RandomAccessFile logFile = new RandomAccessFile(_logFile, "r")) {
+			tail = new byte[(int) (logFile.length() - offset)];
+			logFile.seek(offset);
+			logFile.readFully(tail);
+		}
+		ByteBuffer tailBuffer = ByteBuffer.wrap(tail);
+		CRC32 crc = new CRC32();
+		for (int recordStart = 1; recordStart + HEADER_LENGTH + MIN_RECORD_LENGTH <= tail.length; recordStart++){
+			int recordLength = tailBuffer.getInt(recordStart);
+			if (recordLength < MIN_RECORD_LENGTH || recordLength > tail.length - recordStart - HEADER_LENGTH){
+				continue;
+			}
+			crc.reset();
+			crc.update(tail, recordStart + HEADER_LENGTH, recordLength);
+			if ((int) crc.getValue() == tailBuffer.getInt(recordStart + Integer.BYTES)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isIntact(byte[] record, int recordCrc){
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		return (int) crc.getValue() == recordCrc;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+}
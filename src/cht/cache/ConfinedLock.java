@@ -0,0 +1,55 @@
+package cht.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * Lock of a structure confined to a single thread(e.g. a cache partition), it never blocks and costs nothing.
+ * Serves as both the read and the write lock.
+ * */
+final class ConfinedLock implements Lock, ReadWriteLock {
+
+	static final ConfinedLock INSTANCE = new ConfinedLock();
+
+	private ConfinedLock(){
+	}
+
+	@Override
+	public Lock readLock(){
+		return this;
+	}
+
+	@Override
+	public Lock writeLock(){
+		return this;
+	}
+
+	@Override
+	public void lock(){
+	}
+
+	@Override
+	public void lockInterruptibly(){
+	}
+
+	@Override
+	public boolean tryLock(){
+		return true;
+	}
+
+	@Override
+	public boolean tryLock(long time, TimeUnit unit){
+		return true;
+	}
+
+	@Override
+	public void unlock(){
+	}
+
+	@Override
+	public Condition newCondition(){
+		throw new UnsupportedOperationException("A confined lock has no conditions.");
+	}
+}
@@ -1,121 +1,345 @@
 package cht.cache;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-public class LRUPersistentCache extends Thread {
+import cht.cache.ChunkLog.Chunk;
+import cht.cache.ChunkLog.ChunkType;
+import cht.cache.RadixKeyDirectory.Entry;
+
+public class LRUPersistentCache extends Thread implements ListCache {
+	
+	/**
+	 * Values added to the ends of a list since it was last loaded from disk, 
+	 * persisting them as chunks is enough to bring the persisted list up to date.
+	 * */
+	static class ListDelta {
+		// Shared by the lists in sync with disk, replaced by a delta of their own on the first change
+		static final ListDelta IN_SYNC = new ListDelta();
+		
+		private LinkedList<String> _prepended; // In list order
+		private LinkedList<String> _appended;
+		
+		void add(String value, boolean rightAdd){
+			if (rightAdd){
+				if (_appended == null){
+					_appended = new LinkedList<>();
+				}
+				_appended.addLast(value);
+			} else {
+				if (_prepended == null){
+					_prepended = new LinkedList<>();
+				}
+				_prepended.addFirst(value);
+			}
+		}
+		
+		void addChunks(String key, List<Chunk> chunks){
+			if (_prepended != null){
+				chunks.add(new Chunk(key, ChunkType.PREPEND, _prepended));
+			}
+			if (_appended != null){
+				chunks.add(new Chunk(key, ChunkType.APPEND, _appended));
+			}
+		}
+		
+		/**
+		 * Changes of this delta followed by the ones of the later delta
+		 * */
+		ListDelta followedBy(ListDelta later){
+			if (later == IN_SYNC){
+				return this;
+			}
+			ListDelta merged = new ListDelta();
+			merged._prepended = concat(later._prepended, _prepended);
+			merged._appended = concat(_appended, later._appended);
+			return merged;
+		}
+		
+		private static LinkedList<String> concat(LinkedList<String> first, LinkedList<String> second){
+			if (first == null || second == null){
+				return first == null ? second : first;
+			}
+			LinkedList<String> concatenated = new LinkedList<>(first);
+			concatenated.addAll(second);
+			return concatenated;
+		}
+	}
 	
 	private static final Logger logger = Logger.getLogger(
 			LRUPersistentCache.class.getSimpleName());
 	
-	private static final int DEFAULT_MAX_SIZE = 100000;
-	private static final int SLEEP_INTERVAL_SEC = 30; // Check every 30 sec how much entries were evicted from cache
-	private static final int PERSIST_THRESHOLD = 1000; // If there were more then 1000 evicted we want to persist them to disk and clean
+	static final int DEFAULT_MAX_SIZE = 100000;
+	static final int DEFAULT_PERSIST_INTERVAL_SEC = 30; // Check every 30 sec how much entries were evicted from cache
+	static final int DEFAULT_PERSIST_THRESHOLD = 1000; // If there were more then 1000 evicted we want to persist them to disk and clean
+	private static final int EVICTION_BATCH_SIZE = 1000; // Entries evicted per write lock acquisition once the max size shrinks
+	private static final long CHUNK_LOG_COMPACTION_MIN_BYTES = 1024 * 1024; // Fold chunks into the base data once they pass the base size
 
 	private volatile boolean _running;
 	
-	private  ConcurrentLinkedQueue<String> _cacheQueue; // Queue that keeps the order of insertion to the cache.
-	private  ConcurrentSkipListMap<String,LinkedList<String>> _cacheMap; // The cache map itself
 	private  ConcurrentSkipListMap<String,LinkedList<String>> _recentlyRemovedEntries; // The entries that were removed from cache but not yet serialized
+	// All the keys of every tier, its entries hold the lists in cache, their deltas and the LRU order, keys are not stored elsewhere
+	private final RadixKeyDirectory _keyDirectory;
+	private Entry _lruHead; // Least recently used entry in cache, guarded by _lruLock
+	private Entry _lruTail; // Most recently used entry in cache, guarded by _lruLock
+	private final Lock _lruLock; // Reads move entries in the LRU order under the read lock, in parallel
 	
 	private final ReadWriteLock _readWriteLock;
 	private final Lock _readLock;
 	private final Lock _writeLock; 
+	private final ReadWriteLock _diskLock; // Loads may run in parallel, persisting is exclusive
+	
+	private final List<CacheWriteListener> _writeListeners; // Notified about every modification, under the write lock
 	
-	private int _maxSize; // Max cache size
-	private int _queueSize; // Current queue size
+	private volatile int _maxSize; // Max cache size
+	private volatile int _persistIntervalSec;
+	private volatile int _persistThreshold;
+	private final Object _persistWakeup; // Notified to start a persistence cycle early
+	private int _queueSize; // Number of entries in the LRU order, guarded by _lruLock
 	private String _filePathForPersistance; // File path for serialization
+	private PersistenceCodec _codec; // Compression of the persisted data
+	private final PersistenceStats _persistenceStats;
+	private final SegmentStore _segmentStore; // Base persisted data
+	private ChunkLog _chunkLog; // Appended list chunks on top of the base persisted data, replaced on compaction, guarded by the disk lock
+	private final ValueDictionary _valueDictionary; // Canonical instances of the values, null if values are not interned
 	
-	public LRUPersistentCache(int maxSize, String filePathForPersistance){
+	public LRUPersistentCache(int maxSize, String filePathForPersistance, PersistenceCodec codec){
+		this(maxSize, filePathForPersistance, codec, new PersistenceStats(), null, false);
+	}
+	
+	/**
+	 * Cache recording its persistence I/O to shared stats(e.g. a partition of a partitioned cache),
+	 * its values are interned in the dictionary if it is not null. A confined cache is used by a single thread only, 
+	 * including its persistence cycles(persistEvictedEntries instead of start), so it takes no locks.
+	 * */
+	LRUPersistentCache(int maxSize, String filePathForPersistance, PersistenceCodec codec, PersistenceStats persistenceStats,
+			ValueDictionary valueDictionary, boolean confined){
 		_maxSize = maxSize > 0 ? maxSize : DEFAULT_MAX_SIZE;
-		_cacheQueue = new ConcurrentLinkedQueue<>();
+		_persistIntervalSec = DEFAULT_PERSIST_INTERVAL_SEC;
+		_persistThreshold = DEFAULT_PERSIST_THRESHOLD;
+		_persistWakeup = new Object();
 		_recentlyRemovedEntries = new ConcurrentSkipListMap<>();
-		_readWriteLock = new ReentrantReadWriteLock();
+		_keyDirectory = confined ? new RadixKeyDirectory(ConfinedLock.INSTANCE) : new RadixKeyDirectory();
+		_lruLock = confined ? ConfinedLock.INSTANCE : new ReentrantLock();
+		_readWriteLock = confined ? ConfinedLock.INSTANCE : new ReentrantReadWriteLock();
 		_readLock = _readWriteLock.readLock();
 		_writeLock = _readWriteLock.writeLock();
+		_diskLock = confined ? ConfinedLock.INSTANCE : new ReentrantReadWriteLock();
+		_writeListeners = new CopyOnWriteArrayList<>();
 		_running = true;
 		_filePathForPersistance = filePathForPersistance;
-		_cacheMap = getCacheMapOnStartUp();
+		_codec = codec;
+		_persistenceStats = persistenceStats;
+		_valueDictionary = valueDictionary;
 		logger.setLevel(Level.WARNING);
+		try {
+			_segmentStore = new SegmentStore(filePathForPersistance, codec, persistenceStats);
+			_chunkLog = new ChunkLog(_segmentStore.getChunkLogPath(), true);
+			loadCacheOnStartUp();
+		} catch (IOException i) {
+			// Starting empty would overwrite the persisted data on the next persist
+			throw new IllegalStateException("Persisted data in " + filePathForPersistance + " can not be loaded: " + i.getMessage(), i);
+		}
+	}
+	
+	public LRUPersistentCache(int maxSize, String filePathForPersistance){
+		this(maxSize, filePathForPersistance, new PersistenceCodec(PersistenceCodec.Type.NONE));
+	}
+	
+	public LRUPersistentCache(String filePathForPersistance, PersistenceCodec codec){
+		this(DEFAULT_MAX_SIZE, filePathForPersistance, codec);
 	}
 	
 	public LRUPersistentCache(String filePathForPersistance){
 		this(DEFAULT_MAX_SIZE, filePathForPersistance);
 	}
 	
+	@Override
+	public PersistenceStats getPersistenceStats(){
+		return _persistenceStats;
+	}
+	
+	@Override
+	public PersistenceCodec getPersistenceCodec(){
+		return _codec;
+	}
+	
+	@Override
+	public int getMaxSize(){
+		return _maxSize;
+	}
+	
+	/**
+	 * Change the max size, entries over a smaller size are evicted a batch per write lock acquisition 
+	 * and the persisting thread is woken up to persist them
+	 * */
+	@Override
+	public void setMaxSize(int maxSize){
+		updateMaxSize(maxSize);
+		while (evictOverMaxSize()){
+			// Writers waiting for the lock get it between the batches
+		}
+		wakeUpPersistence();
+	}
+	
 	/**
-	 * Load persisted data on startup(if no new data will arrive, every get will have to read from disk, avoid it) 
+	 * Change the max size without evicting, for a partition that is trimmed one batch per task
 	 * */
-	private ConcurrentSkipListMap<String,LinkedList<String>> getCacheMapOnStartUp(){
-		Map<String, LinkedList<String>> loadedMap =  loadDataFromDisk();
-		return loadedMap == null ? new ConcurrentSkipListMap<>() : new ConcurrentSkipListMap<>(loadedMap);
+	void updateMaxSize(int maxSize){
+		_maxSize = maxSize;
+	}
+	
+	/**
+	 * Evict a batch of the entries over the max size, returns true if the cache is still over it
+	 * */
+	boolean evictOverMaxSize(){
+		lockWrite();
+		try {
+			evictLeastRecentlyUsed(_maxSize, EVICTION_BATCH_SIZE);
+			return _queueSize > _maxSize;
+		} finally{
+			_writeLock.unlock();
+		}
+	}
+	
+	@Override
+	public int getPersistIntervalSec(){
+		return _persistIntervalSec;
+	}
+	
+	@Override
+	public void setPersistIntervalSec(int persistIntervalSec){
+		_persistIntervalSec = persistIntervalSec;
+		// Do not wait for the rest of the previous interval
+		wakeUpPersistence();
+	}
+	
+	@Override
+	public int getPersistThreshold(){
+		return _persistThreshold;
+	}
+	
+	@Override
+	public void setPersistThreshold(int persistThreshold){
+		_persistThreshold = persistThreshold;
+	}
+	
+	/**
+	 * Start a persistence cycle now, e.g. to persist the entries evicted by a smaller max size
+	 * */
+	void wakeUpPersistence(){
+		synchronized (_persistWakeup) {
+			_persistWakeup.notifyAll();
+		}
+	}
+	
+	/**
+	 * Load persisted data on startup(if no new data will arrive, every get will have to read from disk, avoid it).
+	 * Segments are verified and loaded in parallel, a chunk torn by a crash is dropped, and data persisted before
+	 * segments existed is rewritten in segments right away.
+	 * */
+	private void loadCacheOnStartUp() throws IOException {
+		long droppedBytes = _chunkLog.recover();
+		if (droppedBytes > 0){
+			logger.log(
+	           Level.WARNING,
+	           "Dropped " + droppedBytes + " bytes of a chunk torn by a crash from " + _segmentStore.getChunkLogPath() + ".");
+		}
+		
+		Map<String, LinkedList<String>> loadedMap = _segmentStore.loadAll();
+		if (_segmentStore.isLegacy()){
+			new ChunkLog(SegmentStore.legacyChunkLogPath(_filePathForPersistance), false).replayAll(loadedMap);
+			_segmentStore.write(loadedMap);
+			_chunkLog = new ChunkLog(_segmentStore.getChunkLogPath(), true);
+		} else {
+			_chunkLog.replayAll(loadedMap);
+		}
+		// Loaded lists are in sync with disk, only their future changes have to be persisted
+		for (Map.Entry<String, LinkedList<String>> loadedEntry : loadedMap.entrySet()){
+			Entry entry = _keyDirectory.add(loadedEntry.getKey());
+			entry._value = internValues(loadedEntry.getValue());
+			entry._listDelta = ListDelta.IN_SYNC;
+		}
 	}
 	
 	/**
 	 * Get value from cache by key 
 	 * */
+	@Override
 	public List<String> get(String key){
 		boolean foundInRecentlyRemoved = false;
 		boolean foundInPersistedData = false;
 
 		LinkedList<String> retVal=null;
 		
+		CacheLookupEvent lookupEvent = new CacheLookupEvent();
+		lookupEvent.begin();
+		
 		// We are reading from cache so read lock is enough. Allows parallelization.
-		_readLock.lock();
+		lockRead();
 		try {
 			
-			// If cache map contains key, update its order in queue, it was just used
-			// Queue size may not be updated here because remove and add just cancel each other
-			if(_cacheMap.containsKey(key)) {
-				_cacheQueue.remove(key);
-				retVal = _cacheMap.get(key);
-				_cacheQueue.add(key);
+			// If cache contains key, update its LRU order, it was just used
+			Entry entry = _keyDirectory.find(key);
+			if(entry != null && entry._value != null) {
+				touch(entry);
+				retVal = entry._value;
+				lookupEvent.tier = "memory";
 			}
 			else if (_recentlyRemovedEntries.containsKey(key)){
 				// If it was not found in cache it could be recently removed
 				retVal = _recentlyRemovedEntries.get(key);
 				foundInRecentlyRemoved = true;
+				lookupEvent.tier = "recently_removed";
 			}
 			else{
 				// Otherwise try to find it on disk
-				Map<String, LinkedList<String>> loadedMap = loadDataFromDisk();
-				if (loadedMap != null && loadedMap.containsKey(key)){
-					retVal = loadedMap.get(key);
-				}
+				retVal = loadKeyFromDisk(key);
 				foundInPersistedData = true;
+				lookupEvent.tier = retVal != null ? "disk" : "none";
 			}
 						
 		} finally {
 			_readLock.unlock();
 		}
 		
+		if (lookupEvent.shouldCommit()){
+			lookupEvent.key = key;
+			lookupEvent.commit();
+		}
+		
 		// If it was found either in recently removed or on disk put it back to cache
-		if (retVal != null && (foundInPersistedData || foundInRecentlyRemoved)){
-			set(key, retVal, false);
-			// We put it back in cash so remove from recently removed, in case it was moved to cache from disk
-			// next serialization it will be just overwritten so no need to update on disk.
-			if (foundInRecentlyRemoved){
-				_recentlyRemovedEntries.remove(key);
+		if (retVal != null && foundInPersistedData){
+			putLoadedFromDisk(key, retVal);
+		}
+		else if (retVal != null && foundInRecentlyRemoved){
+			lockWrite();
+			try {
+				cache(_keyDirectory.add(key), retVal);
+			} finally{
+				_writeLock.unlock();
 			}
+			// We put it back in cash so remove from recently removed.
+			// Its list delta(if any) is kept, the persisted list was not updated yet.
+			_recentlyRemovedEntries.remove(key);
 		}
 		
 		return retVal;
@@ -124,35 +348,119 @@ public class LRUPersistentCache extends Thread {
 	/**
 	 * Set value to cache with specified key mapping
 	 * */
+	@Override
 	public void set(String key,List<String> value){
-		set(key, value, true);
+		lockWrite();
+		try {
+			Entry entry = _keyDirectory.add(key);
+			cache(entry, internValues(value));
+			// Whole list was replaced, it will be persisted in whole
+			entry._listDelta = null;
+			for (CacheWriteListener listener : _writeListeners){
+				listener.onSet(key, value);
+			}
+		} finally{
+			_writeLock.unlock();
+		}
 	}
 	
 	/**
-	 * Set value to cache with specified key mapping with slight optimization
+	 * Put the list of the entry to cache as the most recently used, must be called under the write lock.
+	 * Keys are never deleted, once known the entry stays in the directory whatever tier its list moves to.
 	 * */
-	private void set(String key,List<String> value, boolean checkExistence){
+	private void cache(Entry entry, List<String> value){
+		// Entry being replaced must not be evicted to make room for itself
+		removeFromLru(entry);
 		
-		_writeLock.lock();
+		// Make room for the new key, a shrunk cache is trimmed a batch per write
+		evictLeastRecentlyUsed(_maxSize - 1, EVICTION_BATCH_SIZE);
+		
+		entry._value = value instanceof LinkedList ? (LinkedList<String>) value : new LinkedList<>(value);
+		addToLru(entry);
+	}
+	
+	/**
+	 * Replace the values with their canonical instances if values are interned, returns the values as a LinkedList
+	 * */
+	private LinkedList<String> internValues(List<String> values){
+		LinkedList<String> valuesList = values instanceof LinkedList ? (LinkedList<String>) values : new LinkedList<>(values);
+		if (_valueDictionary != null){
+			_valueDictionary.internAll(valuesList);
+		}
+		return valuesList;
+	}
+	
+	/**
+	 * While the queue size is bigger then the threshold remove from cache by LRU strategy to recently removed collection,
+	 * up to maxEvictions entries
+	 * */
+	private void evictLeastRecentlyUsed(int maxQueueSize, int maxEvictions){
+		for (int evicted = 0; evicted < maxEvictions; evicted++){
+			 Entry entry = pollLeastRecentlyUsed(maxQueueSize);
+			 if (entry == null){
+				 break;
+			 }
+			 _recentlyRemovedEntries.put(_keyDirectory.keyOf(entry), entry._value);
+			 entry._value = null;
+		}
+	}
+	
+	/**
+	 * Set all the entries with a single write lock acquisition, for bulk loading.
+	 * Keys already in cache keep their place in the LRU order instead of being moved to its tail, 
+	 * and the cache is trimmed to its max size once for the whole batch.
+	 * */
+	@Override
+	public void setAll(Map<String, ? extends List<String>> entries){
+		lockWrite();
 		try {
-			// Sometimes we simply may know when the key exists/not exists thus no need to check the cache
-			if(checkExistence && _cacheMap.containsKey(key)){
-				 _cacheQueue.remove(key);
-				 _queueSize--;
+			for (Map.Entry<String, ? extends List<String>> entry : entries.entrySet()){
+				String key = entry.getKey();
+				Entry cacheEntry = _keyDirectory.add(key);
+				boolean cached = cacheEntry._value != null;
+				cacheEntry._value = internValues(new LinkedList<>(entry.getValue()));
+				if (!cached){
+					addToLru(cacheEntry);
+				}
+				// Older value must not be persisted over the new one
+				_recentlyRemovedEntries.remove(key);
+				cacheEntry._listDelta = null;
+				for (CacheWriteListener listener : _writeListeners){
+					listener.onSet(key, entry.getValue());
+				}
 			}
-			
-			// While the queue size is bigger then the threshold remove from cache by LRU strategy to recently removed collection
-			while(_queueSize >= _maxSize){
-				 String queueKey = _cacheQueue.poll();
-				 _queueSize--;
-				 _recentlyRemovedEntries.put(queueKey, _cacheMap.get(queueKey));
-				 _cacheMap.remove(queueKey);
+			// Entries added by the batch are evicted in whole, a shrunk cache is trimmed by one more batch
+			evictLeastRecentlyUsed(_maxSize, entries.size() + EVICTION_BATCH_SIZE);
+		} finally{
+			_writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Persist all the data to disk now, for offline tools that do not run the persisting thread.
+	 * */
+	@Override
+	public void flush(){
+		lockWrite();
+		try {
+			persistAllAvailableData();
+		} finally{
+			_writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Put a list just loaded from disk back to cache, unless the key was set meanwhile
+	 * */
+	private void putLoadedFromDisk(String key, LinkedList<String> value){
+		lockWrite();
+		try {
+			Entry entry = _keyDirectory.add(key);
+			if (entry._value == null){
+				cache(entry, internValues(value));
+				// In sync with disk, track only the future changes
+				entry._listDelta = ListDelta.IN_SYNC;
 			}
-			
-			// Update queue and insert key with new value
-			_cacheQueue.add(key);
-			_queueSize++;
-			_cacheMap.put(key, value instanceof LinkedList ? (LinkedList<String>) value : new LinkedList<>(value));			
 		} finally{
 			_writeLock.unlock();
 		}
@@ -162,20 +470,21 @@ public class LRUPersistentCache extends Thread {
 	 * Add value from right/left to the list associated with the key
 	 * */
 	private void addFromRightOrLeft(String key, String value, boolean rightAdd){
-		_writeLock.lock();
+		if (_valueDictionary != null){
+			value = _valueDictionary.intern(value);
+		}
+		lockWrite();
 		try {
 			
-			LinkedList<String> tmpList = null;
+			Entry entry = _keyDirectory.add(key);
+			LinkedList<String> tmpList = entry._value;
 			
-			if(_cacheMap.containsKey(key)){
-				_cacheQueue.remove(key);
-				_queueSize--;
-				tmpList = _cacheMap.get(key);
-			} else {
+			if(tmpList == null){
 				// If it was not found, simply insert
 				tmpList = new LinkedList<>();
 				tmpList.add(value);
-				set(key, tmpList, false);
+				cache(entry, tmpList);
+				entry._listDelta = null;
 				return;
 			}
 			
@@ -186,10 +495,16 @@ public class LRUPersistentCache extends Thread {
 				tmpList.addFirst(value);
 			}
 			
-			// Update cache, queue and queue size
-			_cacheQueue.add(key);
-			_queueSize++;
-			_cacheMap.put(key, tmpList);
+			// Only the added value has to be persisted
+			if (entry._listDelta == ListDelta.IN_SYNC){
+				entry._listDelta = new ListDelta();
+			}
+			if (entry._listDelta != null){
+				entry._listDelta.add(value, rightAdd);
+			}
+			
+			// Key was just used, update its LRU order
+			touch(entry);
 			
 		} finally{
 			_writeLock.unlock();
@@ -199,117 +514,411 @@ public class LRUPersistentCache extends Thread {
 	/**
 	 * Add value from right to the list associated with the key
 	 * */
+	@Override
 	public void rightAdd(String key,String value) {
-		addFromRightOrLeft(key, value, true);
+		addAndNotify(key, value, true);
 	}
 	
 	/**
 	 * Add value from left to the list associated with the key
 	 * */
+	@Override
 	public void leftAdd(String key,String value) {
-		addFromRightOrLeft(key, value, false);
+		addAndNotify(key, value, false);
 	}
 	
 	/**
-	 * Get all keys from the cache by prefix
+	 * Add value and notify the listeners before other writers may modify the key
 	 * */
-	public Set<String> getAllKeys(String pattern) {
-		Set<String> retValKeys = new HashSet<>();
-		// We do not know if some of the keys with a given prefix were already removed so check in recently removed as well
-		Map<String, LinkedList<String>> recentlyRemovedPrefixMap = _recentlyRemovedEntries.subMap(pattern, pattern + Character.MAX_VALUE);
-		Map<String, LinkedList<String>> persistedData = null;
-		// We do not know if some of the keys with a given prefix were dumped to disk so load it anyway
-		persistedData = loadDataFromDisk();
-		
-		_readLock.lock();
+	private void addAndNotify(String key, String value, boolean rightAdd){
+		lockWrite();
 		try {
+			addFromRightOrLeft(key, value, rightAdd);
+			for (CacheWriteListener listener : _writeListeners){
+				listener.onAdd(key, value, rightAdd);
+			}
+		} finally{
+			_writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Remove and return the first value of the list associated with the key, null if there are no values
+	 * */
+	@Override
+	public String leftPop(String key){
+		return popFromRightOrLeft(key, false);
+	}
+	
+	/**
+	 * Remove and return the last value of the list associated with the key, null if there are no values
+	 * */
+	@Override
+	public String rightPop(String key){
+		return popFromRightOrLeft(key, true);
+	}
+	
+	/**
+	 * Remove value from right/left of the list associated with the key, the key is kept even if its list gets empty
+	 * */
+	private String popFromRightOrLeft(String key, boolean rightPop){
+		for (;;){
+			lockWrite();
+			try {
+				Entry entry = _keyDirectory.find(key);
+				LinkedList<String> tmpList = entry != null ? entry._value : null;
+				if (tmpList != null){
+					if (tmpList.isEmpty()){
+						return null;
+					}
+					
+					// Key was just used, update its LRU order
+					touch(entry);
+					
+					String value = rightPop ? tmpList.removeLast() : tmpList.removeFirst();
+					// Chunks can only add values, the list will be persisted in whole
+					entry._listDelta = null;
+					for (CacheWriteListener listener : _writeListeners){
+						listener.onPop(key, rightPop);
+					}
+					return value;
+				}
+			} finally{
+				_writeLock.unlock();
+			}
 			
-			// Skiplist based map was used for more efficient prefix submap extraction
-			Map<String, LinkedList<String>> prefixMap = _cacheMap.subMap(pattern, pattern + Character.MAX_VALUE);
-			
-			// Update that all extracted keys were just used
-			for (Map.Entry<String, LinkedList<String>> entry : prefixMap.entrySet()){
-				_cacheQueue.remove(entry.getKey());
-				retValKeys.add(entry.getKey());
-				_cacheQueue.add(entry.getKey());
+			// Key is not in the cache, get brings it back from recently removed or from disk.
+			// It may be evicted again before we lock, so simply retry.
+			if (get(key) == null){
+				return null;
 			}
-
-		} finally {
-			_readLock.unlock();
 		}
-		
-		// Update all recently removed keys and put them back to cache
-		for (Map.Entry<String, LinkedList<String>> entry : recentlyRemovedPrefixMap.entrySet()){
-			set(entry.getKey(), entry.getValue(), false);
-			_recentlyRemovedEntries.remove(entry.getKey());
-			retValKeys.add(entry.getKey());
+	}
+	
+	@Override
+	public void addWriteListener(CacheWriteListener listener){
+		_writeListeners.add(listener);
+	}
+	
+	@Override
+	public void removeWriteListener(CacheWriteListener listener){
+		_writeListeners.remove(listener);
+	}
+	
+	/**
+	 * Pass a copy of all the data(cache, recently removed and persisted) sorted by key to the consumer.
+	 * Writes are blocked until the consumer returns, so nothing is missed or duplicated by a write listener
+	 * registered from within the consumer.
+	 * */
+	@Override
+	public void snapshot(Consumer<Map<String, LinkedList<String>>> snapshotConsumer){
+		lockWrite();
+		try {
+			Map<String, LinkedList<String>> snapshot = new TreeMap<>();
+			try {
+				snapshot.putAll(loadDataFromDisk());
+			} catch (IOException i) {
+				// A snapshot without the persisted data would look complete
+				throw new IllegalStateException("Persisted data can not be loaded: " + i.getMessage(), i);
+			}
+			// Newer tiers override the persisted data, lists are copied since they are modified in place
+			for (Map.Entry<String, LinkedList<String>> entry : _recentlyRemovedEntries.entrySet()){
+				snapshot.put(entry.getKey(), new LinkedList<>(entry.getValue()));
+			}
+			for (Map.Entry<String, LinkedList<String>> entry : cachedEntries().entrySet()){
+				snapshot.put(entry.getKey(), new LinkedList<>(entry.getValue()));
+			}
+			snapshotConsumer.accept(snapshot);
+		} finally{
+			_writeLock.unlock();
 		}
-
-		if (persistedData != null){
-			// Update all persisted keys and put them back to cache
-			for (Map.Entry<String, LinkedList<String>> entry : persistedData.entrySet()){
-				set(entry.getKey(), entry.getValue(), false);
-				retValKeys.add(entry.getKey());
+	}
+	
+	/**
+	 * Remove all the data from the cache and from disk
+	 * */
+	@Override
+	public void clear(){
+		lockWrite();
+		try {
+			_lruLock.lock();
+			try {
+				_lruHead = null;
+				_lruTail = null;
+				_queueSize = 0;
+			} finally {
+				_lruLock.unlock();
+			}
+			_recentlyRemovedEntries.clear();
+			// List deltas go away with the entries
+			_keyDirectory.clear();
+			compactDataOnDisk(new HashMap<>());
+		} finally{
+			_writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Get all keys of every tier matching the pattern, sorted. Pattern is a literal prefix, or a glob with * and ?
+	 * wildcards that has to match the whole key. Several patterns may be separated by comma, example: user:*:sessions,order:
+	 * Keys are looked up in the key directory, neither values nor persisted data are loaded.
+	 * */
+	@Override
+	public Set<String> getAllKeys(String pattern) {
+		Set<String> retValKeys = new TreeSet<>();
+		for (String singlePattern : pattern.split(",")){
+			if (isGlob(singlePattern)){
+				_keyDirectory.forEachMatching(singlePattern, retValKeys::add);
+			} else {
+				_keyDirectory.forEachWithPrefix(singlePattern, retValKeys::add);
 			}
 		}
 		return retValKeys;
 	}
 	
 	/**
-	 * Deserialize backed cache on disk.
+	 * Count keys of every tier matching the pattern, same patterns as getAllKeys. 
+	 * Prefixes are counted without visiting the keys.
 	 * */
-	@SuppressWarnings("unchecked")
-	private Map<String, LinkedList<String>> loadDataFromDisk() {
-		File persistanceFile = new File(_filePathForPersistance);
-		// Check if file exists and is not empty
-		if (!persistanceFile.isFile() || persistanceFile.length() == 0){
-			return null;
+	@Override
+	public int countKeys(String pattern) {
+		String[] patterns = pattern.split(",");
+		if (patterns.length > 1){
+			// Patterns may overlap, count every key once
+			return getAllKeys(pattern).size();
 		}
-		
-		Map<String, LinkedList<String>> loadedMap = null;
+		return isGlob(pattern) ? _keyDirectory.countMatching(pattern) : _keyDirectory.countWithPrefix(pattern);
+	}
+	
+	private static boolean isGlob(String pattern){
+		return pattern.indexOf('*') >= 0 || pattern.indexOf('?') >= 0;
+	}
+	
+	/**
+	 * Acquire the read lock, measuring the wait
+	 * */
+	private void lockRead(){
+		LockWaitEvent lockEvent = new LockWaitEvent();
+		long start = System.nanoTime();
+		lockEvent.begin();
+		_readLock.lock();
+		CacheTimings.record(CacheTimings.Phase.LOCK_WAIT, System.nanoTime() - start);
+		if (lockEvent.shouldCommit()){
+			lockEvent.lock = "read";
+			lockEvent.commit();
+		}
+	}
+	
+	/**
+	 * Acquire the write lock, measuring the wait
+	 * */
+	private void lockWrite(){
+		LockWaitEvent lockEvent = new LockWaitEvent();
+		long start = System.nanoTime();
+		lockEvent.begin();
+		_writeLock.lock();
+		CacheTimings.record(CacheTimings.Phase.LOCK_WAIT, System.nanoTime() - start);
+		if (lockEvent.shouldCommit()){
+			lockEvent.lock = "write";
+			lockEvent.commit();
+		}
+	}
+	
+	/**
+	 * Move the entry to the most recently used end of the LRU order, measuring the update.
+	 * Entries loaded on startup join the LRU order once they are used.
+	 * */
+	private void touch(Entry entry){
+		long start = System.nanoTime();
+		_lruLock.lock();
+		try {
+			unlinkFromLru(entry);
+			linkToLru(entry);
+		} finally {
+			_lruLock.unlock();
+		}
+		CacheTimings.record(CacheTimings.Phase.QUEUE_UPDATE, System.nanoTime() - start);
+	}
+	
+	private void addToLru(Entry entry){
+		_lruLock.lock();
+		try {
+			linkToLru(entry);
+		} finally {
+			_lruLock.unlock();
+		}
+	}
+	
+	private void removeFromLru(Entry entry){
+		_lruLock.lock();
+		try {
+			unlinkFromLru(entry);
+		} finally {
+			_lruLock.unlock();
+		}
+	}
+	
+	/**
+	 * Remove the least recently used entry if there are more than maxQueueSize entries, null otherwise
+	 * */
+	private Entry pollLeastRecentlyUsed(int maxQueueSize){
+		_lruLock.lock();
+		try {
+			if (_queueSize <= maxQueueSize || _lruHead == null){
+				return null;
+			}
+			Entry entry = _lruHead;
+			unlinkFromLru(entry);
+			return entry;
+		} finally {
+			_lruLock.unlock();
+		}
+	}
+	
+	private void linkToLru(Entry entry){
+		entry._lruPrev = _lruTail;
+		entry._lruNext = null;
+		if (_lruTail != null){
+			_lruTail._lruNext = entry;
+		} else {
+			_lruHead = entry;
+		}
+		_lruTail = entry;
+		entry._inLru = true;
+		_queueSize++;
+	}
+	
+	private void unlinkFromLru(Entry entry){
+		if (!entry._inLru){
+			return;
+		}
+		if (entry._lruPrev != null){
+			entry._lruPrev._lruNext = entry._lruNext;
+		} else {
+			_lruHead = entry._lruNext;
+		}
+		if (entry._lruNext != null){
+			entry._lruNext._lruPrev = entry._lruPrev;
+		} else {
+			_lruTail = entry._lruPrev;
+		}
+		entry._lruPrev = null;
+		entry._lruNext = null;
+		entry._inLru = false;
+		_queueSize--;
+	}
+	
+	/**
+	 * Lists in cache by their keys, the lists are not copied
+	 * */
+	private Map<String, LinkedList<String>> cachedEntries(){
+		Map<String, LinkedList<String>> cachedEntries = new HashMap<>();
+		_readLock.lock();
+		try {
+			_keyDirectory.forEachEntry((key, entry) -> {
+				if (entry._value != null){
+					cachedEntries.put(key, entry._value);
+				}
+			});
+		} finally {
+			_readLock.unlock();
+		}
+		return cachedEntries;
+	}
+	
+	/**
+	 * Load all persisted data, base data with all the chunks stitched.
+	 * */
+	private Map<String, LinkedList<String>> loadDataFromDisk() throws IOException {
+		_diskLock.readLock().lock();
+		try {
+			Map<String, LinkedList<String>> loadedMap = _segmentStore.loadAll();
+			_chunkLog.replayAll(loadedMap);
+			return loadedMap;
+		} finally {
+			_diskLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Load persisted list of a single key from its segment, only the chunks of this key are stitched. 
+	 * Returns null if key was not persisted.
+	 * */
+	private LinkedList<String> loadKeyFromDisk(String key) {
+		_diskLock.readLock().lock();
 		try {
-			// Maps already implement Serializable so we may use it
-			FileInputStream fileIn = new FileInputStream(_filePathForPersistance);
-			ObjectInputStream in = new ObjectInputStream(fileIn);
-			loadedMap = (Map<String, LinkedList<String>>) in.readObject();
-			in.close();
-			fileIn.close();
+			return _chunkLog.replayKey(key, _segmentStore.loadKey(key));
 		} catch (IOException i) {
 			logger.log(
-	           Level.WARNING,
-	           "IOException occured when reading persisted data from disk.",
-	           i.getCause());
+	           Level.SEVERE,
+	           "IOException occured when reading persisted data of a key from disk.",
+	           i);
 			return null;
-		} catch (ClassNotFoundException c) {
+		} finally {
+			_diskLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Persist chunks with the changes of the lists on top of the persisted data. Returns false if it failed.
+	 * */
+	private boolean appendChunksToDisk(List<Chunk> chunks){
+		_diskLock.writeLock().lock();
+		try {
+			_chunkLog.append(chunks);
+			return true;
+		} catch (IOException i) {
 			logger.log(
-	           Level.WARNING,
-	           "Unexpected class not found exception during deserialization.",
-	           c.getCause());
-			return null;
+	           Level.SEVERE,
+	           "IOException occured when persisting chunks to disk, the entries are kept in memory and persisted again later.",
+	           i);
+			return false;
+		} finally {
+			_diskLock.writeLock().unlock();
 		}
-		return loadedMap;
 	}
 	
-
 	/**
-	 * Serialize cache to disk.
+	 * Replace all persisted data(base data and chunks) with the data. The previous persisted data is kept if it fails, 
+	 * returns false then.
 	 * */
-	private void persistDataToDisk(Map<String, LinkedList<String>> data){
+	private boolean compactDataOnDisk(Map<String, LinkedList<String>> data){
+		_diskLock.writeLock().lock();
 		try {
-			// Maps already implement Serializable so we may use it
-			FileOutputStream fileOut = new FileOutputStream(_filePathForPersistance);
-			ObjectOutputStream out = new ObjectOutputStream(fileOut);
-			out.writeObject(data);
-			out.close();
-			fileOut.close();
+			// New generation starts with an empty chunk log, the previous one is removed with its generation
+			_segmentStore.write(data);
+			_chunkLog = new ChunkLog(_segmentStore.getChunkLogPath(), true);
+			return true;
 		} catch (IOException i) {
 			logger.log(
-	           Level.WARNING,
-	           "IOException occured during serialization to disk.",
-	           i.getCause());
-	    }
+	           Level.SEVERE,
+	           "IOException occured during serialization to disk, the previous persisted data is kept.",
+	           i);
+			return false;
+		} finally {
+			_diskLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Fold all the chunks into the base data once they take more space than it.
+	 * */
+	private void compactChunksIfNeeded(){
+		_diskLock.writeLock().lock();
+		try {
+			long chunksLength = _chunkLog.length();
+			if (chunksLength > CHUNK_LOG_COMPACTION_MIN_BYTES && chunksLength > _segmentStore.length()){
+				compactDataOnDisk(loadDataFromDisk());
+			}
+		} catch (IOException i) {
+			logger.log(
+	           Level.SEVERE,
+	           "IOException occured when reading persisted data from disk, chunks are not compacted.",
+	           i);
+		} finally {
+			_diskLock.writeLock().unlock();
+		}
 	}
-
 	
 	/**
 	 * Merge maps for concentrated serialization.
@@ -322,7 +931,7 @@ public class LRUPersistentCache extends Thread {
 			            Map.Entry::getKey,
 			            Map.Entry::getValue,
 			            (v1, v2) -> v1, // If there two maps has same key with different values, just take the value from the first map
-			        	() -> new HashMap<>(_cacheMap)
+			        	HashMap::new
 			        )
 			    );
 		return mergedMap;
@@ -330,13 +939,53 @@ public class LRUPersistentCache extends Thread {
 	
 	
 	/**
-	 * Save all available data to disk, in case of shutdown.
+	 * Save all available data to disk, in case of shutdown. If it fails the entries stay in memory with their deltas.
 	 * */
 	private void persistAllAvailableData(){
-		Map<String,LinkedList<String>> loadedMap = loadDataFromDisk();
-		Map<String,LinkedList<String>> mergedLoadedAndRecentlyRemovedMap = loadedMap != null ? mergeMaps(_recentlyRemovedEntries, loadedMap) : _recentlyRemovedEntries;
-		Map<String,LinkedList<String>> mergedAll = mergeMaps(_cacheMap, mergedLoadedAndRecentlyRemovedMap);
-		persistDataToDisk(mergedAll);
+		Map<String,LinkedList<String>> removedEntriesCopy = new HashMap<>(_recentlyRemovedEntries);
+		Map<String,LinkedList<String>> loadedMap;
+		try {
+			loadedMap = loadDataFromDisk();
+		} catch (IOException i) {
+			// Rewriting without the persisted data would lose it, keep it and add the data in memory on top of it
+			logger.log(
+	           Level.SEVERE,
+	           "IOException occured when reading persisted data from disk, data in memory is persisted as chunks.",
+	           i);
+			if (persistChunks(mergeMaps(cachedEntries(), removedEntriesCopy))){
+				removePersistedEntries(removedEntriesCopy);
+			}
+			return;
+		}
+		Map<Entry, ListDelta> capturedDeltas = new HashMap<>();
+		Map<String,LinkedList<String>> mergedAll = mergeMaps(captureLists(removedEntriesCopy, capturedDeltas), loadedMap);
+		if (compactDataOnDisk(mergedAll)){
+			removePersistedEntries(removedEntriesCopy);
+		} else {
+			restoreDeltas(capturedDeltas);
+		}
+	}
+	
+	/**
+	 * Persist the changes of the entries as chunks. Returns false if it failed, the entries keep their deltas then
+	 * and are persisted again by a later cycle.
+	 * */
+	private boolean persistChunks(Map<String, LinkedList<String>> entries){
+		Map<Entry, ListDelta> capturedDeltas = new HashMap<>();
+		if (appendChunksToDisk(captureChunks(entries, capturedDeltas))){
+			return true;
+		}
+		restoreDeltas(capturedDeltas);
+		return false;
+	}
+	
+	/**
+	 * Clean only persisted entries with the old value(could be possibly updated)
+	 * */
+	private void removePersistedEntries(Map<String, LinkedList<String>> persistedEntries){
+		for (Map.Entry<String, LinkedList<String>> entry : persistedEntries.entrySet()){
+			_recentlyRemovedEntries.remove(entry.getKey(),entry.getValue()); 
+		}
 	}
 
 	@Override
@@ -345,7 +994,9 @@ public class LRUPersistentCache extends Thread {
 		while (_running){
 			
 			try {
-				TimeUnit.SECONDS.sleep(SLEEP_INTERVAL_SEC);
+				synchronized (_persistWakeup) {
+					_persistWakeup.wait(TimeUnit.SECONDS.toMillis(_persistIntervalSec));
+				}
 			} catch (InterruptedException e) {
 				logger.log(
 		           Level.WARNING,
@@ -356,23 +1007,113 @@ public class LRUPersistentCache extends Thread {
 				break;
 			}
 			
-			// Wait until too many entries were evicted from cache and then persist to disk to free some RAM
-			if (!(_recentlyRemovedEntries.size() > PERSIST_THRESHOLD)){
-				continue;
+			persistEvictedEntries();
+		}
+	}
+	
+	/**
+	 * Persistence cycle, run by the persisting thread or by the thread of a confined cache.
+	 * Wait until too many entries were evicted from cache and then persist to disk to free some RAM.
+	 * */
+	void persistEvictedEntries(){
+		if (!(_recentlyRemovedEntries.size() > _persistThreshold)){
+			return;
+		}
+		
+		// Create a copy in order to avoid locking during persistence and cleaning
+		HashMap<String,LinkedList<String>> removedEntriesCopy = new HashMap<>(_recentlyRemovedEntries);
+		// Persist only the changes of the lists loaded from disk, the rest in whole
+		if (!persistChunks(removedEntriesCopy)){
+			return; // Entries stay recently removed and are retried by the next cycle
+		}
+		removePersistedEntries(removedEntriesCopy);
+		
+		compactChunksIfNeeded();
+	}
+	
+	/**
+	 * Build the chunks that bring the persisted data up to date with the entries. Lists that are persisted as they are
+	 * in memory are taken as in sync with disk, their previous deltas are put to capturedDeltas to be restored 
+	 * if persisting fails.
+	 * */
+	private List<Chunk> captureChunks(Map<String, LinkedList<String>> entries, Map<Entry, ListDelta> capturedDeltas){
+		List<Chunk> chunks = new ArrayList<>();
+		// Lists and their deltas may be modified if the keys are moved back to cache, capture them consistently
+		lockWrite();
+		try {
+			for (Map.Entry<String, LinkedList<String>> entry : entries.entrySet()){
+				Entry cacheEntry = _keyDirectory.find(entry.getKey());
+				ListDelta listDelta = cacheEntry != null ? cacheEntry._listDelta : null;
+				if (listDelta != null){
+					listDelta.addChunks(entry.getKey(), chunks);
+				} else {
+					chunks.add(new Chunk(entry.getKey(), ChunkType.REPLACE, new ArrayList<>(entry.getValue())));
+				}
+				captureDelta(entry.getKey(), cacheEntry, entry.getValue(), capturedDeltas);
 			}
-			
-			Map<String,LinkedList<String>> loadedMap = loadDataFromDisk();
-			// Create a copy in order to avoid locking during persistence and cleaning
-			HashMap<String,LinkedList<String>> removedEntriesCopy = new HashMap<>(_recentlyRemovedEntries);
-			// Merge data from disk with new data and update duplicate keys
-			Map<String,LinkedList<String>> mergedLoadedAndRecentlyRemovedMap = loadedMap != null ? mergeMaps(removedEntriesCopy, loadedMap) : _recentlyRemovedEntries;
-			// Persist everything back to disk
-			persistDataToDisk(mergedLoadedAndRecentlyRemovedMap);
-			
-			// Clean only persisted entries with the old value(could be possibly updated)
-			for (Map.Entry<String, LinkedList<String>> entry : removedEntriesCopy.entrySet()){
-				_recentlyRemovedEntries.remove(entry.getKey(),entry.getValue()); 
+		} finally{
+			_writeLock.unlock();
+		}
+		return chunks;
+	}
+	
+	/**
+	 * Copy all the lists in memory(cache and recently removed) to be persisted in whole, deltas are captured 
+	 * as in captureChunks.
+	 * */
+	private Map<String, LinkedList<String>> captureLists(Map<String, LinkedList<String>> removedEntries, 
+			Map<Entry, ListDelta> capturedDeltas){
+		Map<String, LinkedList<String>> lists = new HashMap<>();
+		lockWrite();
+		try {
+			_keyDirectory.forEachEntry((key, entry) -> {
+				if (entry._value != null){
+					lists.put(key, new LinkedList<>(entry._value));
+					captureDelta(key, entry, entry._value, capturedDeltas);
+				}
+			});
+			for (Map.Entry<String, LinkedList<String>> entry : removedEntries.entrySet()){
+				if (!lists.containsKey(entry.getKey())){
+					lists.put(entry.getKey(), new LinkedList<>(entry.getValue()));
+					captureDelta(entry.getKey(), _keyDirectory.find(entry.getKey()), entry.getValue(), capturedDeltas);
+				}
 			}
+		} finally{
+			_writeLock.unlock();
+		}
+		return lists;
+	}
+	
+	/**
+	 * Take the entry as in sync with disk once its captured list is persisted, unless the list was replaced since.
+	 * Must be called under the write lock.
+	 * */
+	private void captureDelta(String key, Entry entry, LinkedList<String> capturedList, Map<Entry, ListDelta> capturedDeltas){
+		if (entry == null){
+			return;
+		}
+		LinkedList<String> currentList = entry._value != null ? entry._value : _recentlyRemovedEntries.get(key);
+		if (currentList == capturedList){
+			capturedDeltas.put(entry, entry._listDelta);
+			entry._listDelta = ListDelta.IN_SYNC;
+		}
+	}
+	
+	/**
+	 * Put back the deltas of lists that failed to persist, followed by the changes made since they were captured
+	 * */
+	private void restoreDeltas(Map<Entry, ListDelta> capturedDeltas){
+		lockWrite();
+		try {
+			for (Map.Entry<Entry, ListDelta> captured : capturedDeltas.entrySet()){
+				Entry entry = captured.getKey();
+				if (entry._listDelta == null){
+					continue; // Replaced or popped since, it is persisted in whole anyway
+				}
+				entry._listDelta = captured.getValue() == null ? null : captured.getValue().followedBy(entry._listDelta);
+			}
+		} finally{
+			_writeLock.unlock();
 		}
 	}
 	
@@ -380,6 +1121,7 @@ public class LRUPersistentCache extends Thread {
 	/**
 	 * Before terminating the server simply persist all available data by waking the thread 
 	 * */
+	@Override
 	public void stopThreadAndPersistData() {
 		// Check if the thread is sleeping(in our case he can not be waiting)
 		if (getState().equals(State.TIMED_WAITING)){
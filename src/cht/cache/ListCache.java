@@ -0,0 +1,104 @@
+package cht.cache;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Persistent cache of lists of values by key, the operations the server runs on its data.
+ * */
+public interface ListCache {
+
+	/**
+	 * Get value by key, null if the key does not exist
+	 * */
+	List<String> get(String key);
+
+	void set(String key, List<String> value);
+
+	/**
+	 * Set all the entries at once, for bulk loading
+	 * */
+	void setAll(Map<String, ? extends List<String>> entries);
+
+	void rightAdd(String key, String value);
+
+	void leftAdd(String key, String value);
+
+	/**
+	 * Remove and return the first value of the list, null if there are no values
+	 * */
+	String leftPop(String key);
+
+	/**
+	 * Remove and return the last value of the list, null if there are no values
+	 * */
+	String rightPop(String key);
+
+	/**
+	 * All keys matching the prefix/glob pattern(s), sorted
+	 * */
+	Set<String> getAllKeys(String pattern);
+
+	int countKeys(String pattern);
+
+	/**
+	 * Pass a sorted copy of all the data to the consumer, writes are blocked until it returns
+	 * */
+	void snapshot(Consumer<Map<String, LinkedList<String>>> snapshotConsumer);
+
+	/**
+	 * Remove all the data from the cache and from disk
+	 * */
+	void clear();
+
+	void addWriteListener(CacheWriteListener listener);
+
+	void removeWriteListener(CacheWriteListener listener);
+
+	PersistenceStats getPersistenceStats();
+
+	PersistenceCodec getPersistenceCodec();
+
+	/**
+	 * Max number of entries kept in memory
+	 * */
+	int getMaxSize();
+
+	/**
+	 * Change the max number of entries kept in memory, entries over a smaller size are evicted a batch at a time
+	 * so the writers are not blocked for the whole eviction
+	 * */
+	void setMaxSize(int maxSize);
+
+	int getPersistIntervalSec();
+
+	/**
+	 * Change how often the background persistence checks the evicted entries, takes effect right away
+	 * */
+	void setPersistIntervalSec(int persistIntervalSec);
+
+	int getPersistThreshold();
+
+	/**
+	 * Change the number of evicted entries the background persistence waits for before persisting them
+	 * */
+	void setPersistThreshold(int persistThreshold);
+
+	/**
+	 * Start persisting the evicted entries in the background
+	 * */
+	void start();
+
+	/**
+	 * Persist all the data to disk now, for offline tools that do not start the background persistence
+	 * */
+	void flush();
+
+	/**
+	 * Persist all the data and stop the background persistence
+	 * */
+	void stopThreadAndPersistData();
+}
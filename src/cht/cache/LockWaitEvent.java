@@ -0,0 +1,18 @@
+package cht.cache;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("cht.LockWait")
+@Label("Cache Lock Wait")
+@Description("Time spent acquiring the cache read/write lock")
+@Category({"CHT", "Cache"})
+@StackTrace(false)
+class LockWaitEvent extends jdk.jfr.Event {
+	
+	@Label("Lock")
+	String lock;
+}
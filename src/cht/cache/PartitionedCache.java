@@ -0,0 +1,459 @@
+package cht.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Cache split into independent partitions, each with its own LRU order, eviction and persistence file(<path>.p<i>).
+ * Keys are hashed to partitions and every operation runs on the single thread owning the partition, and so do the
+ * persistence cycles of the partition, so a partition is confined to its thread and takes no locks at all. Partitions
+ * never contend with each other, the commands of a partition wait only for the tasks queued before them on its thread.
+ * The calling thread(a Netty I/O worker in the server) blocks until the partition thread has executed its command.
+ * The number of partitions is kept in <path>.partitions, data persisted with another number of partitions
+ * is refused since its keys would be looked up in the wrong partitions.
+ * */
+public class PartitionedCache implements ListCache {
+
+	/**
+	 * Result of a task run on a partition thread with the cache timings it has recorded
+	 * */
+	private static class PartitionResult<T> {
+		private final T _value;
+		private final long[] _phaseNanos;
+
+		PartitionResult(T value, long[] phaseNanos){
+			_value = value;
+			_phaseNanos = phaseNanos;
+		}
+	}
+
+	private final LRUPersistentCache[] _partitions;
+	private final ScheduledExecutorService[] _executors; // Single thread per partition, runs its commands and persistence cycles
+	private final ScheduledFuture<?>[] _nextPersistCycles; // Used only by the thread of the partition
+	private final PersistenceStats _persistenceStats; // Shared by all the partitions
+	private final PersistenceCodec _codec;
+	private volatile int _maxSize; // Split evenly between the partitions
+
+	/**
+	 * Open the persisted data with the given number of partitions, a single partition is a plain LRUPersistentCache.
+	 * Values are interned in the dictionary(shared by all the partitions) if it is not null.
+	 * Throws IllegalStateException if the data was persisted with another number of partitions.
+	 * */
+	public static ListCache open(int partitionsCount, int maxSize, String filePathForPersistance, PersistenceCodec codec,
+			ValueDictionary valueDictionary) throws IOException {
+		File partitionsFile = new File(filePathForPersistance + ".partitions");
+		int persistedPartitionsCount = 0;
+		if (partitionsFile.isFile()){
+			persistedPartitionsCount = Integer.parseInt(new String(Files.readAllBytes(partitionsFile.toPath()), StandardCharsets.UTF_8).trim());
+		} else if (SegmentStore.hasPersistedData(filePathForPersistance)){
+			persistedPartitionsCount = 1;
+		}
+
+		if (persistedPartitionsCount != 0 && persistedPartitionsCount != partitionsCount){
+			throw new IllegalStateException("Data in " + filePathForPersistance + " was persisted with " + persistedPartitionsCount
+					+ " partitions, export it and import it with the new number of partitions.");
+		}
+
+		if (partitionsCount == 1){
+			return new LRUPersistentCache(maxSize, filePathForPersistance, codec, new PersistenceStats(), valueDictionary, false);
+		}
+		Files.write(partitionsFile.toPath(), String.valueOf(partitionsCount).getBytes(StandardCharsets.UTF_8));
+		return new PartitionedCache(partitionsCount, maxSize, filePathForPersistance, codec, valueDictionary);
+	}
+
+	private PartitionedCache(int partitionsCount, int maxSize, String filePathForPersistance, PersistenceCodec codec,
+			ValueDictionary valueDictionary){
+		_partitions = new LRUPersistentCache[partitionsCount];
+		_executors = new ScheduledExecutorService[partitionsCount];
+		_nextPersistCycles = new ScheduledFuture<?>[partitionsCount];
+		_persistenceStats = new PersistenceStats();
+		_codec = codec;
+
+		_maxSize = maxSize > 0 ? maxSize : LRUPersistentCache.DEFAULT_MAX_SIZE;
+		int partitionMaxSize = partitionMaxSize(_maxSize);
+		for (int i = 0; i < partitionsCount; i++){
+			String threadName = "cache-partition-" + i;
+			_executors[i] = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, threadName);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		// Every partition loads its persisted data on its own thread, in parallel
+		List<Future<LRUPersistentCache>> partitionFutures = new ArrayList<>();
+		for (int i = 0; i < partitionsCount; i++){
+			String partitionPath = filePathForPersistance + ".p" + i;
+			partitionFutures.add(_executors[i].submit(() -> new LRUPersistentCache(partitionMaxSize, partitionPath, codec, _persistenceStats, 
+					valueDictionary, true)));
+		}
+		for (int i = 0; i < partitionsCount; i++){
+			_partitions[i] = await(partitionFutures.get(i));
+		}
+	}
+
+	private int partitionMaxSize(int maxSize){
+		return maxSize / _partitions.length + (maxSize % _partitions.length == 0 ? 0 : 1);
+	}
+	
+	private int partitionOf(String key){
+		return Math.floorMod(key.hashCode(), _partitions.length);
+	}
+	
+	/**
+	 * Persistence cycle of the partition, the next one is scheduled one persist interval after it. 
+	 * Runs on the partition thread.
+	 * */
+	private void persistNow(int partitionIdx){
+		try {
+			_partitions[partitionIdx].persistEvictedEntries();
+		} finally {
+			scheduleNextPersistence(partitionIdx);
+		}
+	}
+	
+	/**
+	 * Replace the next persistence cycle of the partition by one a persist interval from now. Runs on the partition thread.
+	 * */
+	private void scheduleNextPersistence(int partitionIdx){
+		if (_nextPersistCycles[partitionIdx] != null){
+			_nextPersistCycles[partitionIdx].cancel(false);
+		}
+		_nextPersistCycles[partitionIdx] = _executors[partitionIdx].schedule(() -> persistNow(partitionIdx), 
+				_partitions[partitionIdx].getPersistIntervalSec(), TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Run a persistence cycle of every partition now, without waiting for it
+	 * */
+	private void wakeUpPersistence(){
+		for (int i = 0; i < _partitions.length; i++){
+			int partitionIdx = i;
+			_executors[i].execute(() -> persistNow(partitionIdx));
+		}
+	}
+
+	/**
+	 * Run the task on the thread of the partition and wait for it, its cache timings are added to the current thread
+	 * */
+	private <T> T execute(int partitionIdx, Function<LRUPersistentCache, T> task){
+		return awaitTimed(submit(partitionIdx, task));
+	}
+
+	private <T> Future<PartitionResult<T>> submit(int partitionIdx, Function<LRUPersistentCache, T> task){
+		LRUPersistentCache partition = _partitions[partitionIdx];
+		long submitted = System.nanoTime();
+		return _executors[partitionIdx].submit(() -> {
+			CacheTimings.reset();
+			// Queueing behind the other tasks of the partition is the partitioned form of waiting for the lock
+			CacheTimings.record(CacheTimings.Phase.LOCK_WAIT, System.nanoTime() - submitted);
+			T value = task.apply(partition);
+			return new PartitionResult<>(value, CacheTimings.capture());
+		});
+	}
+
+	/**
+	 * Run the task on all the partitions in parallel and wait for all of them
+	 * */
+	private <T> List<T> executeOnAll(Function<LRUPersistentCache, T> task){
+		List<Future<PartitionResult<T>>> futures = new ArrayList<>();
+		for (int i = 0; i < _partitions.length; i++){
+			futures.add(submit(i, task));
+		}
+		List<T> results = new ArrayList<>();
+		for (Future<PartitionResult<T>> future : futures){
+			results.add(awaitTimed(future));
+		}
+		return results;
+	}
+
+	private static <T> T awaitTimed(Future<PartitionResult<T>> future){
+		PartitionResult<T> result = await(future);
+		CacheTimings.add(result._phaseNanos);
+		return result._value;
+	}
+
+	private static <T> T await(Future<T> future){
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for a cache partition.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Cache partition task failed.", e.getCause());
+		}
+	}
+
+	@Override
+	public List<String> get(String key) {
+		return execute(partitionOf(key), partition -> partition.get(key));
+	}
+
+	@Override
+	public void set(String key, List<String> value) {
+		execute(partitionOf(key), partition -> {
+			partition.set(key, value);
+			return null;
+		});
+	}
+
+	@Override
+	public void setAll(Map<String, ? extends List<String>> entries) {
+		List<Map<String, List<String>>> partitionEntries = new ArrayList<>();
+		for (int i = 0; i < _partitions.length; i++){
+			partitionEntries.add(new HashMap<>());
+		}
+		for (Map.Entry<String, ? extends List<String>> entry : entries.entrySet()){
+			partitionEntries.get(partitionOf(entry.getKey())).put(entry.getKey(), entry.getValue());
+		}
+
+		List<Future<PartitionResult<Object>>> futures = new ArrayList<>();
+		for (int i = 0; i < _partitions.length; i++){
+			Map<String, List<String>> batch = partitionEntries.get(i);
+			if (!batch.isEmpty()){
+				futures.add(submit(i, partition -> {
+					partition.setAll(batch);
+					return null;
+				}));
+			}
+		}
+		for (Future<PartitionResult<Object>> future : futures){
+			awaitTimed(future);
+		}
+	}
+
+	@Override
+	public void rightAdd(String key, String value) {
+		execute(partitionOf(key), partition -> {
+			partition.rightAdd(key, value);
+			return null;
+		});
+	}
+
+	@Override
+	public void leftAdd(String key, String value) {
+		execute(partitionOf(key), partition -> {
+			partition.leftAdd(key, value);
+			return null;
+		});
+	}
+
+	@Override
+	public String leftPop(String key) {
+		return execute(partitionOf(key), partition -> partition.leftPop(key));
+	}
+
+	@Override
+	public String rightPop(String key) {
+		return execute(partitionOf(key), partition -> partition.rightPop(key));
+	}
+
+	@Override
+	public Set<String> getAllKeys(String pattern) {
+		Set<String> allKeys = new TreeSet<>();
+		for (Set<String> partitionKeys : executeOnAll(partition -> partition.getAllKeys(pattern))){
+			allKeys.addAll(partitionKeys);
+		}
+		return allKeys;
+	}
+
+	@Override
+	public int countKeys(String pattern) {
+		// Every key is in a single partition
+		int count = 0;
+		for (int partitionCount : executeOnAll(partition -> partition.countKeys(pattern))){
+			count += partitionCount;
+		}
+		return count;
+	}
+
+	/**
+	 * All the partition threads are parked while the snapshot is taken and consumed, so writes to all the
+	 * partitions are blocked at once. Synchronized since two snapshots could otherwise park each other's partitions.
+	 * */
+	@Override
+	public synchronized void snapshot(Consumer<Map<String, LinkedList<String>>> snapshotConsumer) {
+		CountDownLatch parked = new CountDownLatch(_partitions.length);
+		CountDownLatch resume = new CountDownLatch(1);
+		for (ScheduledExecutorService executor : _executors){
+			executor.execute(() -> {
+				parked.countDown();
+				try {
+					resume.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+		}
+
+		try {
+			parked.await();
+			Map<String, LinkedList<String>> snapshot = new TreeMap<>();
+			for (LRUPersistentCache partition : _partitions){
+				partition.snapshot(snapshot::putAll);
+			}
+			snapshotConsumer.accept(snapshot);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the cache partitions.", e);
+		} finally {
+			resume.countDown();
+		}
+	}
+
+	@Override
+	public void clear() {
+		executeOnAll(partition -> {
+			partition.clear();
+			return null;
+		});
+	}
+
+	@Override
+	public void addWriteListener(CacheWriteListener listener) {
+		for (LRUPersistentCache partition : _partitions){
+			partition.addWriteListener(listener);
+		}
+	}
+
+	@Override
+	public void removeWriteListener(CacheWriteListener listener) {
+		for (LRUPersistentCache partition : _partitions){
+			partition.removeWriteListener(listener);
+		}
+	}
+
+	@Override
+	public PersistenceStats getPersistenceStats() {
+		return _persistenceStats;
+	}
+
+	@Override
+	public PersistenceCodec getPersistenceCodec() {
+		return _codec;
+	}
+
+	@Override
+	public int getMaxSize() {
+		return _maxSize;
+	}
+	
+	/**
+	 * Every partition gets its share of the max size, partitions over it are trimmed in parallel, 
+	 * a batch per task so the commands queued on a partition run between the batches
+	 * */
+	@Override
+	public void setMaxSize(int maxSize) {
+		_maxSize = maxSize;
+		int partitionMaxSize = partitionMaxSize(maxSize);
+		executeOnAll(partition -> {
+			partition.updateMaxSize(partitionMaxSize);
+			return null;
+		});
+		
+		List<Integer> overMaxSize = new ArrayList<>();
+		for (int i = 0; i < _partitions.length; i++){
+			overMaxSize.add(i);
+		}
+		while (!overMaxSize.isEmpty()){
+			List<Future<PartitionResult<Boolean>>> futures = new ArrayList<>();
+			for (int partitionIdx : overMaxSize){
+				futures.add(submit(partitionIdx, LRUPersistentCache::evictOverMaxSize));
+			}
+			List<Integer> stillOverMaxSize = new ArrayList<>();
+			for (int i = 0; i < futures.size(); i++){
+				if (awaitTimed(futures.get(i))){
+					stillOverMaxSize.add(overMaxSize.get(i));
+				}
+			}
+			overMaxSize = stillOverMaxSize;
+		}
+		
+		wakeUpPersistence();
+	}
+	
+	@Override
+	public int getPersistIntervalSec() {
+		return _partitions[0].getPersistIntervalSec();
+	}
+	
+	/**
+	 * Partitions run a cycle right away, the next ones are a new interval apart
+	 * */
+	@Override
+	public void setPersistIntervalSec(int persistIntervalSec) {
+		for (LRUPersistentCache partition : _partitions){
+			partition.setPersistIntervalSec(persistIntervalSec);
+		}
+		wakeUpPersistence();
+	}
+	
+	/**
+	 * Threshold of every partition on its own
+	 * */
+	@Override
+	public int getPersistThreshold() {
+		return _partitions[0].getPersistThreshold();
+	}
+	
+	@Override
+	public void setPersistThreshold(int persistThreshold) {
+		for (LRUPersistentCache partition : _partitions){
+			partition.setPersistThreshold(persistThreshold);
+		}
+	}
+	
+	@Override
+	public void start() {
+		for (int i = 0; i < _partitions.length; i++){
+			int partitionIdx = i;
+			_executors[i].execute(() -> scheduleNextPersistence(partitionIdx));
+		}
+	}
+
+	@Override
+	public void flush() {
+		executeOnAll(partition -> {
+			partition.flush();
+			return null;
+		});
+	}
+
+	/**
+	 * Persist all the data of the partitions on their threads, after the commands queued before, and wait for it.
+	 * The partition threads are stopped afterwards, the cycles scheduled for later are dropped.
+	 * */
+	@Override
+	public void stopThreadAndPersistData() {
+		try {
+			flush();
+		} finally {
+			for (ScheduledExecutorService executor : _executors){
+				executor.shutdownNow();
+			}
+		}
+	}
+}
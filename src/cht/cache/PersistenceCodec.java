@@ -0,0 +1,114 @@
+package cht.cache;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Block compression of the persisted data. Every persisted file starts with a small header naming the codec
+ * it was written with, so files written with any codec(or before compression existed) can always be read back.
+ * */
+public class PersistenceCodec {
+	
+	public enum Type {
+		NONE,
+		DEFLATE
+	}
+	
+	public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+	
+	private static final byte[] MAGIC = {'C', 'H', 'T'};
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private final Type _type;
+	private final int _level; // Deflate level, 1(fastest) to 9(smallest)
+	
+	public PersistenceCodec(Type type, int level){
+		if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION){
+			throw new IllegalArgumentException("Compression level must be between " + Deflater.BEST_SPEED 
+					+ " and " + Deflater.BEST_COMPRESSION + ".");
+		}
+		_type = type;
+		_level = level;
+	}
+	
+	public PersistenceCodec(Type type){
+		this(type, DEFAULT_LEVEL);
+	}
+	
+	/**
+	 * Parse codec name, none or deflate
+	 * */
+	public static PersistenceCodec fromName(String name, int level){
+		return new PersistenceCodec(Type.valueOf(name.toUpperCase()), level);
+	}
+	
+	public Type getType() {
+		return _type;
+	}
+	
+	public int getLevel() {
+		return _level;
+	}
+	
+	/**
+	 * Write the codec header and wrap the stream with the compressing stream
+	 * */
+	public OutputStream wrapForWrite(OutputStream out) throws IOException {
+		out.write(MAGIC);
+		out.write(_type.ordinal());
+		
+		if (_type == Type.NONE){
+			return out;
+		}
+		return new DeflaterOutputStream(out, new Deflater(_level), BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					// Deflater was created by us so the stream does not release its native memory
+					def.end();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Read the codec header and wrap the stream with the matching decompressing stream
+	 * */
+	public static InputStream wrapForRead(InputStream in) throws IOException {
+		BufferedInputStream bufferedIn = new BufferedInputStream(in, BUFFER_SIZE);
+		byte[] header = new byte[MAGIC.length + 1];
+		bufferedIn.mark(header.length);
+		new DataInputStream(bufferedIn).readFully(header);
+		
+		if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)){
+			// No header, file was written before compression was supported
+			bufferedIn.reset();
+			return bufferedIn;
+		}
+		
+		if (header[MAGIC.length] >= Type.values().length){
+			throw new IOException("Unknown persistence codec: " + header[MAGIC.length]);
+		}
+		
+		switch (Type.values()[header[MAGIC.length]]) {
+		case DEFLATE:
+			return new InflaterInputStream(bufferedIn);
+		default:
+			return bufferedIn;
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return _type == Type.NONE ? "none" : _type.name().toLowerCase() + "/" + _level;
+	}
+}
@@ -0,0 +1,27 @@
+package cht.cache;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("cht.Persistence")
+@Label("Persistence I/O")
+@Description("Load or flush of the persisted data")
+@Category({"CHT", "Cache"})
+@StackTrace(false)
+class PersistenceEvent extends jdk.jfr.Event {
+	
+	@Label("Operation")
+	@Description("load or persist")
+	String operation;
+	
+	@Label("Entries")
+	int entries;
+	
+	@Label("Stored Bytes")
+	@DataAmount
+	long storedBytes;
+}
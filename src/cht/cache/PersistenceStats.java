@@ -0,0 +1,144 @@
+package cht.cache;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the persistence I/O, raw(serialized) vs stored(compressed) size and time spent in the codec.
+ * */
+public class PersistenceStats {
+	
+	/**
+	 * Counts the bytes written through the stream and the time spent writing them to the wrapped stream
+	 * */
+	static class MeteredOutputStream extends FilterOutputStream {
+		private long _bytes;
+		private long _nanos;
+		
+		MeteredOutputStream(OutputStream out){
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			long start = System.nanoTime();
+			out.write(b);
+			_nanos += System.nanoTime() - start;
+			_bytes++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			out.write(b, off, len);
+			_nanos += System.nanoTime() - start;
+			_bytes += len;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			long start = System.nanoTime();
+			super.close(); // Flushes the remaining compressed block
+			_nanos += System.nanoTime() - start;
+		}
+		
+		long getBytes() {
+			return _bytes;
+		}
+		
+		long getNanos() {
+			return _nanos;
+		}
+	}
+	
+	/**
+	 * Counts the bytes read through the stream and the time spent reading them from the wrapped stream
+	 * */
+	static class MeteredInputStream extends FilterInputStream {
+		private long _bytes;
+		private long _nanos;
+		
+		MeteredInputStream(InputStream in){
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			long start = System.nanoTime();
+			int b = in.read();
+			_nanos += System.nanoTime() - start;
+			if (b >= 0){
+				_bytes++;
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			int readBytes = in.read(b, off, len);
+			_nanos += System.nanoTime() - start;
+			if (readBytes > 0){
+				_bytes += readBytes;
+			}
+			return readBytes;
+		}
+		
+		long getBytes() {
+			return _bytes;
+		}
+		
+		long getNanos() {
+			return _nanos;
+		}
+	}
+	
+	private final AtomicLong _persistCount = new AtomicLong();
+	private final AtomicLong _rawBytesWritten = new AtomicLong();
+	private final AtomicLong _storedBytesWritten = new AtomicLong();
+	private final AtomicLong _encodeNanos = new AtomicLong(); // Compression and disk write time
+	private final AtomicLong _persistNanos = new AtomicLong(); // Total time including serialization
+	
+	private final AtomicLong _loadCount = new AtomicLong();
+	private final AtomicLong _rawBytesRead = new AtomicLong();
+	private final AtomicLong _storedBytesRead = new AtomicLong();
+	private final AtomicLong _decodeNanos = new AtomicLong(); // Decompression and disk read time
+	private final AtomicLong _loadNanos = new AtomicLong(); // Total time including deserialization
+	
+	void recordPersist(long rawBytes, long storedBytes, long encodeNanos, long totalNanos){
+		_persistCount.incrementAndGet();
+		_rawBytesWritten.addAndGet(rawBytes);
+		_storedBytesWritten.addAndGet(storedBytes);
+		_encodeNanos.addAndGet(encodeNanos);
+		_persistNanos.addAndGet(totalNanos);
+	}
+	
+	void recordLoad(long rawBytes, long storedBytes, long decodeNanos, long totalNanos){
+		_loadCount.incrementAndGet();
+		_rawBytesRead.addAndGet(rawBytes);
+		_storedBytesRead.addAndGet(storedBytes);
+		_decodeNanos.addAndGet(decodeNanos);
+		_loadNanos.addAndGet(totalNanos);
+	}
+	
+	public String getInfo(){
+		long rawBytesWritten = _rawBytesWritten.get();
+		long storedBytesWritten = _storedBytesWritten.get();
+		return "persist_count:" + _persistCount.get()
+			+ ",persist_raw_bytes:" + rawBytesWritten
+			+ ",persist_stored_bytes:" + storedBytesWritten
+			+ ",compression_ratio:" + (storedBytesWritten == 0 ? "1.00" : String.format("%.2f", (double) rawBytesWritten / storedBytesWritten))
+			+ ",encode_ms:" + TimeUnit.NANOSECONDS.toMillis(_encodeNanos.get())
+			+ ",persist_ms:" + TimeUnit.NANOSECONDS.toMillis(_persistNanos.get())
+			+ ",load_count:" + _loadCount.get()
+			+ ",load_raw_bytes:" + _rawBytesRead.get()
+			+ ",load_stored_bytes:" + _storedBytesRead.get()
+			+ ",decode_ms:" + TimeUnit.NANOSECONDS.toMillis(_decodeNanos.get())
+			+ ",load_ms:" + TimeUnit.NANOSECONDS.toMillis(_loadNanos.get());
+	}
+}
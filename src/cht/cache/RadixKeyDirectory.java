@@ -0,0 +1,514 @@
+package cht.cache;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Directory of all the keys of the cache(in memory, recently removed and persisted), kept in a compressed radix tree.
+ * Shared key prefixes are stored once and every node knows how many keys are below it, so prefix counts
+ * do not need to visit the keys. Supports literal prefixes and glob patterns with * and ? wildcards.
+ * The node where a key ends is its entry and holds the cache state of the key(list, delta, LRU order), so the cache
+ * does not keep the key as a String anywhere else, the key is spelled by the labels on the path to its entry.
+ * Lookups run in parallel, additions are exclusive.
+ * */
+class RadixKeyDirectory {
+
+	static class Node {
+		private static final Node[] NO_CHILDREN = new Node[0];
+
+		private byte[] _label; // Edge label from the parent, a byte per char like a compact String unless _wideLabel
+		private boolean _wideLabel; // Label has chars above Latin-1, two bytes per char
+		private Node[] _children = NO_CHILDREN; // Sorted by the first char of their labels
+		private Node _parent; // Null for the root
+		private int _count; // Number of keys in this subtree
+
+		private Node(byte[] label, boolean wideLabel){
+			_label = label;
+			_wideLabel = wideLabel;
+		}
+
+		int labelLength(){
+			return _wideLabel ? _label.length >> 1 : _label.length;
+		}
+
+		char labelChar(int idx){
+			if (_wideLabel){
+				return (char) (((_label[idx << 1] & 0xFF) << 8) | (_label[(idx << 1) + 1] & 0xFF));
+			}
+			return (char) (_label[idx] & 0xFF);
+		}
+
+		/**
+		 * Chars [fromIdx, toIdx) of the label, in the same width
+		 * */
+		byte[] labelRange(int fromIdx, int toIdx){
+			return _wideLabel ? Arrays.copyOfRange(_label, fromIdx << 1, toIdx << 1) : Arrays.copyOfRange(_label, fromIdx, toIdx);
+		}
+
+		void appendLabel(StringBuilder path){
+			for (int idx = 0; idx < labelLength(); idx++){
+				path.append(labelChar(idx));
+			}
+		}
+	}
+
+	/**
+	 * Node where a key ends. Its cache state is guarded by the cache, not by the directory.
+	 * */
+	static final class Entry extends Node {
+		LinkedList<String> _value; // List of the key while it is in memory, null otherwise
+		LRUPersistentCache.ListDelta _listDelta; // Changes of the list since it was loaded from disk, null if it is persisted in whole
+		Entry _lruPrev; // Less recently used entry in memory
+		Entry _lruNext; // More recently used entry in memory
+		boolean _inLru;
+
+		private Entry(byte[] label, boolean wideLabel){
+			super(label, wideLabel);
+		}
+	}
+
+	private Node _root;
+	private final ReadWriteLock _lock;
+
+	RadixKeyDirectory(){
+		this(new ReentrantReadWriteLock());
+	}
+
+	/**
+	 * Directory guarded by the lock, a ConfinedLock for a directory used by a single thread
+	 * */
+	RadixKeyDirectory(ReadWriteLock lock){
+		_root = new Node(new byte[0], false);
+		_lock = lock;
+	}
+
+	/**
+	 * Add key to the directory if it is not there yet, returns its entry
+	 * */
+	Entry add(String key){
+		// Most of the writes are to known keys, do not block the lookups for them
+		Entry entry = find(key);
+		if (entry != null){
+			return entry;
+		}
+
+		_lock.writeLock().lock();
+		try {
+			entry = find(key);
+			if (entry != null){
+				return entry;
+			}
+
+			Node node = _root;
+			node._count++;
+			int keyIdx = 0;
+			for (;;){
+				if (keyIdx == key.length()){
+					// Key ends at an inner node, it becomes an entry in place
+					return toEntry(node);
+				}
+
+				int childIdx = findChild(node, key.charAt(keyIdx));
+				if (childIdx < 0){
+					Entry leaf = newLeaf(key, keyIdx);
+					insertChild(node, -(childIdx + 1), leaf);
+					return leaf;
+				}
+
+				Node child = node._children[childIdx];
+				int common = commonPrefixLength(child, key, keyIdx);
+				if (common < child.labelLength()){
+					// Key diverges inside the child label, split the label at the divergence point
+					Node split = new Node(child.labelRange(0, common), child._wideLabel);
+					split._count = child._count;
+					split._parent = node;
+					child._label = child.labelRange(common, child.labelLength());
+					child._parent = split;
+					split._children = new Node[] {child};
+					node._children[childIdx] = split;
+					child = split;
+				}
+
+				child._count++;
+				node = child;
+				keyIdx += common;
+			}
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Entry of the key, null if the key is not in the directory
+	 * */
+	Entry find(String key){
+		_lock.readLock().lock();
+		try {
+			Node node = _root;
+			int keyIdx = 0;
+			while (keyIdx < key.length()){
+				int childIdx = findChild(node, key.charAt(keyIdx));
+				if (childIdx < 0){
+					return null;
+				}
+				node = node._children[childIdx];
+				int labelLength = node.labelLength();
+				if (commonPrefixLength(node, key, keyIdx) < labelLength){
+					return null;
+				}
+				keyIdx += labelLength;
+			}
+			return node instanceof Entry ? (Entry) node : null;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	boolean contains(String key){
+		return find(key) != null;
+	}
+
+	/**
+	 * Key of the entry, spelled from the root down to it
+	 * */
+	String keyOf(Entry entry){
+		_lock.readLock().lock();
+		try {
+			int keyLength = 0;
+			for (Node node = entry; node != null; node = node._parent){
+				keyLength += node.labelLength();
+			}
+			char[] key = new char[keyLength];
+			for (Node node = entry; node != null; node = node._parent){
+				keyLength -= node.labelLength();
+				for (int idx = 0; idx < node.labelLength(); idx++){
+					key[keyLength + idx] = node.labelChar(idx);
+				}
+			}
+			return new String(key);
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Pass every entry with its key to the consumer, in lexicographic order
+	 * */
+	void forEachEntry(BiConsumer<String, Entry> consumer){
+		_lock.readLock().lock();
+		try {
+			collectEntries(_root, new StringBuilder(), consumer);
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	void clear(){
+		_lock.writeLock().lock();
+		try {
+			_root = new Node(new byte[0], false);
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	int size(){
+		_lock.readLock().lock();
+		try {
+			return _root._count;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Pass all the keys starting with the prefix to the consumer, in lexicographic order
+	 * */
+	void forEachWithPrefix(String prefix, Consumer<String> consumer){
+		_lock.readLock().lock();
+		try {
+			StringBuilder path = new StringBuilder(prefix.length() + 16);
+			Node node = findPrefixNode(prefix, path);
+			if (node != null){
+				collectAll(node, path, consumer);
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Number of keys starting with the prefix, without visiting them
+	 * */
+	int countWithPrefix(String prefix){
+		_lock.readLock().lock();
+		try {
+			Node node = findPrefixNode(prefix, new StringBuilder());
+			return node == null ? 0 : node._count;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Pass all the keys matching the glob pattern to the consumer, in lexicographic order.
+	 * * matches any sequence of chars and ? matches a single char.
+	 * */
+	void forEachMatching(String glob, Consumer<String> consumer){
+		_lock.readLock().lock();
+		try {
+			GlobMatcher matcher = new GlobMatcher(glob);
+			BitSet startStates = matcher.start();
+			if (_root instanceof Entry && matcher.accepts(startStates)){
+				consumer.accept("");
+			}
+			matchGlob(_root, matcher, startStates, new StringBuilder(), consumer);
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Number of keys matching the glob pattern, subtrees matched entirely(trailing *) are counted without visiting them
+	 * */
+	int countMatching(String glob){
+		_lock.readLock().lock();
+		try {
+			GlobMatcher matcher = new GlobMatcher(glob);
+			return countGlob(_root, matcher, matcher.start());
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Find the node whose subtree holds exactly the keys starting with the prefix, path is filled with its full key prefix
+	 * */
+	private Node findPrefixNode(String prefix, StringBuilder path){
+		Node node = _root;
+		int prefixIdx = 0;
+		while (prefixIdx < prefix.length()){
+			int childIdx = findChild(node, prefix.charAt(prefixIdx));
+			if (childIdx < 0){
+				return null;
+			}
+
+			Node child = node._children[childIdx];
+			int common = commonPrefixLength(child, prefix, prefixIdx);
+			if (prefixIdx + common < prefix.length() && common < child.labelLength()){
+				return null; // Diverges inside the label
+			}
+			child.appendLabel(path);
+			node = child;
+			prefixIdx += common;
+		}
+		return node;
+	}
+
+	private void collectAll(Node node, StringBuilder path, Consumer<String> consumer){
+		if (node instanceof Entry){
+			consumer.accept(path.toString());
+		}
+		for (Node child : node._children){
+			int pathLength = path.length();
+			child.appendLabel(path);
+			collectAll(child, path, consumer);
+			path.setLength(pathLength);
+		}
+	}
+
+	private void matchGlob(Node node, GlobMatcher matcher, BitSet states, StringBuilder path, Consumer<String> consumer){
+		for (Node child : node._children){
+			BitSet childStates = matcher.step(states, child);
+			if (childStates.isEmpty()){
+				continue; // No key below the child may match
+			}
+
+			int pathLength = path.length();
+			child.appendLabel(path);
+			if (child instanceof Entry && matcher.accepts(childStates)){
+				consumer.accept(path.toString());
+			}
+			matchGlob(child, matcher, childStates, path, consumer);
+			path.setLength(pathLength);
+		}
+	}
+
+	private int countGlob(Node node, GlobMatcher matcher, BitSet states){
+		if (matcher.acceptsAnySuffix(states)){
+			return node._count;
+		}
+
+		int count = node instanceof Entry && matcher.accepts(states) ? 1 : 0;
+		for (Node child : node._children){
+			BitSet childStates = matcher.step(states, child);
+			if (!childStates.isEmpty()){
+				count += countGlob(child, matcher, childStates);
+			}
+		}
+		return count;
+	}
+
+	private void collectEntries(Node node, StringBuilder path, BiConsumer<String, Entry> consumer){
+		if (node instanceof Entry){
+			consumer.accept(path.toString(), (Entry) node);
+		}
+		for (Node child : node._children){
+			int pathLength = path.length();
+			child.appendLabel(path);
+			collectEntries(child, path, consumer);
+			path.setLength(pathLength);
+		}
+	}
+
+	private static Entry newLeaf(String key, int fromIdx){
+		boolean wideLabel = false;
+		for (int keyIdx = fromIdx; keyIdx < key.length() && !wideLabel; keyIdx++){
+			wideLabel = key.charAt(keyIdx) > 0xFF;
+		}
+		byte[] label = new byte[(key.length() - fromIdx) << (wideLabel ? 1 : 0)];
+		for (int keyIdx = fromIdx; keyIdx < key.length(); keyIdx++){
+			char c = key.charAt(keyIdx);
+			if (wideLabel){
+				label[(keyIdx - fromIdx) << 1] = (byte) (c >> 8);
+				label[((keyIdx - fromIdx) << 1) + 1] = (byte) c;
+			} else {
+				label[keyIdx - fromIdx] = (byte) c;
+			}
+		}
+		Entry leaf = new Entry(label, wideLabel);
+		((Node) leaf)._count = 1;
+		return leaf;
+	}
+
+	/**
+	 * Replace an inner node by an entry with the same label and children
+	 * */
+	private Entry toEntry(Node node){
+		if (node instanceof Entry){
+			return (Entry) node;
+		}
+		Entry entry = new Entry(node._label, node._wideLabel);
+		Node entryNode = entry; // Node fields are private to Node, not inherited by Entry
+		entryNode._children = node._children;
+		entryNode._count = node._count;
+		entryNode._parent = node._parent;
+		for (Node child : node._children){
+			child._parent = entry;
+		}
+		if (node._parent == null){
+			_root = entry;
+		} else {
+			Node[] siblings = node._parent._children;
+			siblings[findChild(node._parent, node.labelChar(0))] = entry;
+		}
+		return entry;
+	}
+
+	private static void insertChild(Node node, int insertionIdx, Node child){
+		child._parent = node;
+		Node[] children = new Node[node._children.length + 1];
+		System.arraycopy(node._children, 0, children, 0, insertionIdx);
+		children[insertionIdx] = child;
+		System.arraycopy(node._children, insertionIdx, children, insertionIdx + 1, node._children.length - insertionIdx);
+		node._children = children;
+	}
+
+	/**
+	 * Binary search of the child by the first char of its label, same contract as Arrays.binarySearch
+	 * */
+	private static int findChild(Node node, char firstChar){
+		int low = 0;
+		int high = node._children.length - 1;
+		while (low <= high){
+			int mid = (low + high) >>> 1;
+			char midChar = node._children[mid].labelChar(0);
+			if (midChar < firstChar){
+				low = mid + 1;
+			} else if (midChar > firstChar){
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	private static int commonPrefixLength(Node node, String key, int keyIdx){
+		int maxLength = Math.min(node.labelLength(), key.length() - keyIdx);
+		int common = 0;
+		while (common < maxLength && node.labelChar(common) == key.charAt(keyIdx + common)){
+			common++;
+		}
+		return common;
+	}
+
+	/**
+	 * Glob pattern as a nondeterministic automaton, a state is the number of pattern chars matched so far
+	 * */
+	private static final class GlobMatcher {
+		private final char[] _pattern;
+		private final int _anySuffixFrom; // Pattern from this index on is only *, matches any suffix. -1 if it does not end with *
+
+		private GlobMatcher(String glob){
+			_pattern = glob.toCharArray();
+			int anySuffixFrom = _pattern.length;
+			while (anySuffixFrom > 0 && _pattern[anySuffixFrom - 1] == '*'){
+				anySuffixFrom--;
+			}
+			_anySuffixFrom = anySuffixFrom < _pattern.length ? anySuffixFrom : -1;
+		}
+
+		private BitSet start(){
+			BitSet states = new BitSet(_pattern.length + 1);
+			states.set(0);
+			return closure(states);
+		}
+
+		private BitSet step(BitSet states, Node node){
+			BitSet current = states;
+			for (int idx = 0; idx < node.labelLength(); idx++){
+				char c = node.labelChar(idx);
+				BitSet next = new BitSet(_pattern.length + 1);
+				for (int state = current.nextSetBit(0); state >= 0 && state < _pattern.length; state = current.nextSetBit(state + 1)){
+					char patternChar = _pattern[state];
+					if (patternChar == '*'){
+						next.set(state);
+					} else if (patternChar == '?' || patternChar == c){
+						next.set(state + 1);
+					}
+				}
+				current = closure(next);
+				if (current.isEmpty()){
+					break;
+				}
+			}
+			return current;
+		}
+
+		/**
+		 * * may match an empty sequence, so the state after it is reachable as well
+		 * */
+		private BitSet closure(BitSet states){
+			for (int state = states.nextSetBit(0); state >= 0 && state < _pattern.length; state = states.nextSetBit(state + 1)){
+				if (_pattern[state] == '*'){
+					states.set(state + 1);
+				}
+			}
+			return states;
+		}
+
+		private boolean accepts(BitSet states){
+			return states.get(_pattern.length);
+		}
+
+		private boolean acceptsAnySuffix(BitSet states){
+			return _anySuffixFrom >= 0 && states.nextSetBit(_anySuffixFrom) >= 0;
+		}
+	}
+}
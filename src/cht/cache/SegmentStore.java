@@ -0,0 +1,451 @@
+package cht.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import cht.cache.PersistenceStats.MeteredInputStream;
+import cht.cache.PersistenceStats.MeteredOutputStream;
+
+/**
+ * Base persisted data split into segments by key hash. Every segment is a separately serialized(and compressed) map
+ * with its own checksum, so segments are written and loaded in parallel and a single key is loaded from its segment alone.
+ * Persisting writes a new generation of segments next to the current one, every file through a temp file that is synced
+ * and atomically renamed over the target. The new generation becomes current only once the manifest naming its segments
+ * with their lengths and checksums is renamed over the previous manifest, so a crash at any point leaves one complete
+ * generation on disk, never a torn or mixed one.
+ *
+ * Files: <path> manifest, <path>.<generation>.seg<i> segments, <path>.<generation>.chunks chunk log of the generation.
+ * Manifest format: magic, version(int), generation(long), number of segments(int), length(long) and CRC32(int) of every
+ * segment, CRC32 of all of the above(int).
+ * A <path> without the magic is a single file written before segments existed, it is still loaded.
+ * */
+class SegmentStore {
+
+	/**
+	 * Data of a single segment with the I/O it took
+	 * */
+	private static class SegmentIO {
+		private Map<String, LinkedList<String>> _data;
+		private long _length; // Stored bytes
+		private int _crc;
+		private long _rawBytes; // Serialized bytes
+		private long _codecNanos;
+	}
+
+	private static final byte[] MAGIC = {'C', 'H', 'T', 'M'};
+	private static final int VERSION = 1;
+	private static final int ENTRIES_PER_SEGMENT = 10000;
+	private static final int MAX_SEGMENTS_COUNT = 256;
+	private static final String TMP_SUFFIX = ".tmp";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File _manifestFile;
+	private final PersistenceCodec _codec;
+	private final PersistenceStats _persistenceStats;
+	private final Pattern _generationFilePattern; // Segments and chunk logs of any generation, and their temp files
+	private long _generation; // Current generation, 0 until the first persist
+	private long[] _segmentLengths;
+	private int[] _segmentCrcs;
+	private boolean _legacy; // Manifest path holds a single unsegmented file
+
+	/**
+	 * Read the manifest of the persisted data and remove the leftovers of a persist interrupted by a crash.
+	 * Throws IOException if the manifest is corrupted.
+	 * */
+	SegmentStore(String filePathForPersistance, PersistenceCodec codec, PersistenceStats persistenceStats) throws IOException {
+		_manifestFile = new File(filePathForPersistance);
+		_codec = codec;
+		_persistenceStats = persistenceStats;
+		_generationFilePattern = Pattern.compile(Pattern.quote(_manifestFile.getName()) + "\\.(\\d+)\\.(seg\\d+|chunks)(" + Pattern.quote(TMP_SUFFIX) + ")?");
+		_segmentLengths = new long[0];
+		_segmentCrcs = new int[0];
+		readManifest();
+		deleteFilesOfOtherGenerations();
+		if (_generation > 0){
+			// A persist committed the segments but crashed before removing the legacy chunk log, the segments already hold its chunks
+			new File(legacyChunkLogPath(filePathForPersistance)).delete();
+		}
+	}
+
+	/**
+	 * Whether anything was persisted to the path, in any format
+	 * */
+	static boolean hasPersistedData(String filePathForPersistance){
+		return new File(filePathForPersistance).length() > 0
+				|| new File(filePathForPersistance + ".0.chunks").length() > 0
+				|| new File(legacyChunkLogPath(filePathForPersistance)).length() > 0;
+	}
+
+	/**
+	 * Chunk log written before segments existed, its records are not framed
+	 * */
+	static String legacyChunkLogPath(String filePathForPersistance){
+		return filePathForPersistance + ".chunks";
+	}
+
+	/**
+	 * Whether the persisted data was written before segments existed, it is rewritten in segments on the next persist.
+	 * The legacy chunk log only belongs to a legacy manifest or to no manifest at all(generation 0).
+	 * */
+	boolean isLegacy(){
+		return _legacy || (_generation == 0 && new File(legacyChunkLogPath(_manifestFile.getPath())).isFile());
+	}
+
+	/**
+	 * Chunk log on top of the current generation
+	 * */
+	String getChunkLogPath(){
+		return _manifestFile.getPath() + "." + _generation + ".chunks";
+	}
+
+	/**
+	 * Stored size of the current generation
+	 * */
+	long length(){
+		if (_legacy){
+			return _manifestFile.length();
+		}
+		return Arrays.stream(_segmentLengths).sum();
+	}
+
+	/**
+	 * Verify and load all the segments in parallel. Throws IOException if any segment is missing or corrupted.
+	 * */
+	Map<String, LinkedList<String>> loadAll() throws IOException {
+		PersistenceEvent persistenceEvent = new PersistenceEvent();
+		persistenceEvent.begin();
+		long start = System.nanoTime();
+		List<SegmentIO> segments;
+		if (_legacy){
+			segments = new ArrayList<>();
+			segments.add(readLegacy());
+		} else {
+			segments = inParallel(_segmentLengths.length, this::readSegment);
+		}
+
+		Map<String, LinkedList<String>> loadedMap = new HashMap<>();
+		for (SegmentIO segment : segments){
+			loadedMap.putAll(segment._data);
+		}
+		long storedBytes = recordLoad(segments, System.nanoTime() - start);
+		if (persistenceEvent.shouldCommit()){
+			persistenceEvent.operation = "load";
+			persistenceEvent.entries = loadedMap.size();
+			persistenceEvent.storedBytes = storedBytes;
+			persistenceEvent.commit();
+		}
+		return loadedMap;
+	}
+
+	/**
+	 * Load the persisted list of the key from its segment alone, null if the key was not persisted
+	 * */
+	LinkedList<String> loadKey(String key) throws IOException {
+		if (_legacy){
+			return loadAll().get(key);
+		}
+		if (_segmentLengths.length == 0){
+			return null;
+		}
+		long start = System.nanoTime();
+		List<SegmentIO> segments = new ArrayList<>();
+		segments.add(readSegment(segmentOf(key, _segmentLengths.length)));
+		recordLoad(segments, System.nanoTime() - start);
+		return segments.get(0)._data.get(key);
+	}
+
+	/**
+	 * Persist the data as a new generation that replaces the current one, segments are written in parallel.
+	 * The files of the previous generation(including its chunk log) are removed once the new one is committed.
+	 * */
+	void write(Map<String, LinkedList<String>> data) throws IOException {
+		PersistenceEvent persistenceEvent = new PersistenceEvent();
+		persistenceEvent.begin();
+		long start = System.nanoTime();
+
+		int segmentsCount = Math.max(1, Math.min(MAX_SEGMENTS_COUNT, (data.size() + ENTRIES_PER_SEGMENT - 1) / ENTRIES_PER_SEGMENT));
+		List<Map<String, LinkedList<String>>> segmentsData = new ArrayList<>();
+		for (int i = 0; i < segmentsCount; i++){
+			segmentsData.add(new HashMap<>());
+		}
+		for (Map.Entry<String, LinkedList<String>> entry : data.entrySet()){
+			segmentsData.get(segmentOf(entry.getKey(), segmentsCount)).put(entry.getKey(), entry.getValue());
+		}
+
+		long generation = _generation + 1;
+		List<SegmentIO> segments = inParallel(segmentsCount, segmentIdx -> writeSegment(generation, segmentIdx, segmentsData.get(segmentIdx)));
+		long[] segmentLengths = new long[segmentsCount];
+		int[] segmentCrcs = new int[segmentsCount];
+		for (int i = 0; i < segmentsCount; i++){
+			segmentLengths[i] = segments.get(i)._length;
+			segmentCrcs[i] = segments.get(i)._crc;
+		}
+		writeManifest(generation, segmentLengths, segmentCrcs);
+
+		// Committed, the previous generation is not needed anymore
+		_generation = generation;
+		_segmentLengths = segmentLengths;
+		_segmentCrcs = segmentCrcs;
+		_legacy = false;
+		deleteFilesOfOtherGenerations();
+		new File(legacyChunkLogPath(_manifestFile.getPath())).delete();
+
+		long persistNanos = System.nanoTime() - start;
+		long rawBytes = 0;
+		long storedBytes = 0;
+		long encodeNanos = 0;
+		for (SegmentIO segment : segments){
+			rawBytes += segment._rawBytes;
+			storedBytes += segment._length;
+			encodeNanos += segment._codecNanos;
+		}
+		_persistenceStats.recordPersist(rawBytes, storedBytes, encodeNanos, persistNanos);
+		CacheTimings.record(CacheTimings.Phase.DISK_PERSIST, persistNanos);
+		if (persistenceEvent.shouldCommit()){
+			persistenceEvent.operation = "persist";
+			persistenceEvent.entries = data.size();
+			persistenceEvent.storedBytes = storedBytes;
+			persistenceEvent.commit();
+		}
+	}
+
+	/**
+	 * Partitions pick their keys by the plain key hash, so the segments of a partition mix the hash first(murmur3 finalizer).
+	 * Otherwise only the segments congruent to the partition index would ever get keys.
+	 * */
+	private static int segmentOf(String key, int segmentsCount){
+		int hash = key.hashCode();
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return Math.floorMod(hash, segmentsCount);
+	}
+
+	private File segmentFile(long generation, int segmentIdx){
+		return new File(_manifestFile.getPath() + "." + generation + ".seg" + segmentIdx);
+	}
+
+	/**
+	 * Run the task for every segment on all the cores, rethrowing the first failure
+	 * */
+	private static List<SegmentIO> inParallel(int segmentsCount, IOFunction task) throws IOException {
+		IntFunction<SegmentIO> uncheckedTask = segmentIdx -> {
+			try {
+				return task.apply(segmentIdx);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		};
+		try {
+			return IntStream.range(0, segmentsCount).parallel().mapToObj(uncheckedTask).collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	@FunctionalInterface
+	private interface IOFunction {
+		SegmentIO apply(int segmentIdx) throws IOException;
+	}
+
+	private long recordLoad(List<SegmentIO> segments, long loadNanos){
+		long rawBytes = 0;
+		long storedBytes = 0;
+		long decodeNanos = 0;
+		for (SegmentIO segment : segments){
+			rawBytes += segment._rawBytes;
+			storedBytes += segment._length;
+			decodeNanos += segment._codecNanos;
+		}
+		_persistenceStats.recordLoad(rawBytes, storedBytes, decodeNanos, loadNanos);
+		CacheTimings.record(CacheTimings.Phase.DISK_LOAD, loadNanos);
+		return storedBytes;
+	}
+
+	/**
+	 * Read the segment and verify its length and checksum before deserializing it
+	 * */
+	private SegmentIO readSegment(int segmentIdx) throws IOException {
+		File segmentFile = segmentFile(_generation, segmentIdx);
+		if (!segmentFile.isFile()){
+			throw new IOException("Segment " + segmentFile + " is missing.");
+		}
+		byte[] stored = Files.readAllBytes(segmentFile.toPath());
+		CRC32 crc = new CRC32();
+		crc.update(stored);
+		if (stored.length != _segmentLengths[segmentIdx] || (int) crc.getValue() != _segmentCrcs[segmentIdx]){
+			throw new IOException("Segment " + segmentFile + " is corrupted, its length or checksum does not match the manifest.");
+		}
+
+		SegmentIO segment = decode(new ByteArrayInputStream(stored));
+		segment._length = stored.length;
+		return segment;
+	}
+
+	private SegmentIO readLegacy() throws IOException {
+		SegmentIO segment;
+		try (FileInputStream fileIn = new FileInputStream(_manifestFile)) {
+			segment = decode(fileIn);
+		}
+		segment._length = _manifestFile.length();
+		return segment;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static SegmentIO decode(InputStream storedIn) throws IOException {
+		SegmentIO segment = new SegmentIO();
+		// Maps already implement Serializable so we may use it, the codec is detected from the segment header
+		MeteredInputStream decodedIn = new MeteredInputStream(PersistenceCodec.wrapForRead(storedIn));
+		try (ObjectInputStream in = new ObjectInputStream(decodedIn)) {
+			segment._data = (Map<String, LinkedList<String>>) in.readObject();
+		} catch (ClassNotFoundException c) {
+			throw new IOException("Unexpected class not found exception during deserialization.", c);
+		}
+		segment._rawBytes = decodedIn.getBytes();
+		segment._codecNanos = decodedIn.getNanos();
+		return segment;
+	}
+
+	private SegmentIO writeSegment(long generation, int segmentIdx, Map<String, LinkedList<String>> segmentData) throws IOException {
+		SegmentIO segment = new SegmentIO();
+		File segmentFile = segmentFile(generation, segmentIdx);
+		File tmpFile = new File(segmentFile.getPath() + TMP_SUFFIX);
+		CheckedOutputStream checkedOut = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE), new CRC32());
+		MeteredOutputStream fileOut = new MeteredOutputStream(checkedOut);
+		MeteredOutputStream encodedOut = new MeteredOutputStream(_codec.wrapForWrite(fileOut));
+		try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(encodedOut))) {
+			out.writeObject(segmentData);
+		}
+		segment._length = fileOut.getBytes();
+		segment._crc = (int) checkedOut.getChecksum().getValue();
+		segment._rawBytes = encodedOut.getBytes();
+		segment._codecNanos = encodedOut.getNanos();
+		commit(tmpFile, segmentFile);
+		return segment;
+	}
+
+	private void writeManifest(long generation, long[] segmentLengths, int[] segmentCrcs) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(generation);
+		out.writeInt(segmentLengths.length);
+		for (int i = 0; i < segmentLengths.length; i++){
+			out.writeLong(segmentLengths[i]);
+			out.writeInt(segmentCrcs[i]);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeInt((int) crc.getValue());
+
+		File tmpFile = new File(_manifestFile.getPath() + TMP_SUFFIX);
+		Files.write(tmpFile.toPath(), bytes.toByteArray());
+		commit(tmpFile, _manifestFile);
+	}
+
+	private void readManifest() throws IOException {
+		if (!_manifestFile.isFile() || _manifestFile.length() == 0){
+			return;
+		}
+		byte[] bytes = Files.readAllBytes(_manifestFile.toPath());
+		if (bytes.length < MAGIC.length || !Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC)){
+			_legacy = true;
+			return;
+		}
+
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+			in.skipBytes(MAGIC.length);
+			int version = in.readInt();
+			if (version != VERSION){
+				throw new IOException("Manifest " + _manifestFile + " has an unknown version: " + version);
+			}
+			long generation = in.readLong();
+			int segmentsCount = in.readInt();
+			if (segmentsCount < 0 || segmentsCount > MAX_SEGMENTS_COUNT){
+				throw new IOException("Manifest " + _manifestFile + " is corrupted, invalid number of segments: " + segmentsCount);
+			}
+			long[] segmentLengths = new long[segmentsCount];
+			int[] segmentCrcs = new int[segmentsCount];
+			for (int i = 0; i < segmentsCount; i++){
+				segmentLengths[i] = in.readLong();
+				segmentCrcs[i] = in.readInt();
+			}
+			int checkedLength = bytes.length - Integer.BYTES;
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, checkedLength);
+			if (in.readInt() != (int) crc.getValue() || in.available() > 0){
+				throw new IOException("Manifest " + _manifestFile + " is corrupted, its checksum does not match.");
+			}
+			_generation = generation;
+			_segmentLengths = segmentLengths;
+			_segmentCrcs = segmentCrcs;
+		} catch (EOFException e) {
+			throw new IOException("Manifest " + _manifestFile + " is corrupted, it is truncated.", e);
+		}
+	}
+
+	/**
+	 * Remove the temp files and the files of the generations other than the current one, left by an interrupted or
+	 * a committed persist
+	 * */
+	private void deleteFilesOfOtherGenerations(){
+		new File(_manifestFile.getPath() + TMP_SUFFIX).delete();
+		File[] files = _manifestFile.getAbsoluteFile().getParentFile().listFiles();
+		if (files == null){
+			return;
+		}
+		for (File file : files){
+			Matcher matcher = _generationFilePattern.matcher(file.getName());
+			if (matcher.matches() && (matcher.group(3) != null || Long.parseLong(matcher.group(1)) != _generation)){
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Sync the temp file and atomically rename it over the target, then sync the directory so the rename is durable
+	 * */
+	private static void commit(File tmpFile, File targetFile) throws IOException {
+		try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+		Files.move(tmpFile.toPath(), targetFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		try (FileChannel dirChannel = FileChannel.open(targetFile.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+			dirChannel.force(true);
+		} catch (IOException e) {
+			// Directories can not be synced on some platforms, the rename is still atomic
+		}
+	}
+}
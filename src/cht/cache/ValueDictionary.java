@@ -0,0 +1,82 @@
+package cht.cache;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Dictionary of the list values, every distinct value is kept as a single canonical String shared by all the lists
+ * holding it, instead of a copy per list element. A value is dropped from the dictionary once no list references its
+ * canonical String anymore. Since all the lists share the same instances, the serialized data also holds every
+ * distinct value once and refers to it by a back reference.
+ * Striped so the connections interning values in parallel rarely contend.
+ * */
+public class ValueDictionary {
+
+	private static final int STRIPES_COUNT = 64; // Power of 2
+
+	private final List<Map<String, WeakReference<String>>> _stripes; // Value -> its canonical String, guarded by the stripe
+	private final LongAdder _lookups;
+	private final LongAdder _hits;
+
+	public ValueDictionary(){
+		_stripes = new ArrayList<>(STRIPES_COUNT);
+		for (int i = 0; i < STRIPES_COUNT; i++){
+			_stripes.add(new WeakHashMap<>());
+		}
+		_lookups = new LongAdder();
+		_hits = new LongAdder();
+	}
+
+	/**
+	 * Canonical String equal to the value, the value itself becomes canonical if it is new
+	 * */
+	public String intern(String value){
+		_lookups.increment();
+		Map<String, WeakReference<String>> stripe = _stripes.get(value.hashCode() & (STRIPES_COUNT - 1));
+		synchronized (stripe) {
+			WeakReference<String> canonicalRef = stripe.get(value);
+			String canonical = canonicalRef != null ? canonicalRef.get() : null;
+			if (canonical != null){
+				_hits.increment();
+				return canonical;
+			}
+			stripe.put(value, new WeakReference<>(value));
+			return value;
+		}
+	}
+
+	/**
+	 * Replace the values of the list with their canonical Strings, in place
+	 * */
+	public void internAll(List<String> values){
+		ListIterator<String> valuesIter = values.listIterator();
+		while (valuesIter.hasNext()){
+			valuesIter.set(intern(valuesIter.next()));
+		}
+	}
+
+	/**
+	 * Number of distinct values referenced by the lists
+	 * */
+	public int size(){
+		int size = 0;
+		for (Map<String, WeakReference<String>> stripe : _stripes){
+			synchronized (stripe) {
+				size += stripe.size(); // Drops the values that are not referenced anymore
+			}
+		}
+		return size;
+	}
+
+	public String getInfo(){
+		long lookups = _lookups.sum();
+		long hits = _hits.sum();
+		return "dict_values:" + size() + ",dict_lookups:" + lookups + ",dict_hits:" + hits
+			+ ",dict_hit_ratio:" + String.format("%.2f", lookups > 0 ? (double) hits / lookups : 0.0);
+	}
+}
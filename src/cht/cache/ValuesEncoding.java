@@ -0,0 +1,41 @@
+package cht.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Text encoding of a list of values, shared by the replication stream, the export files and mset.
+ * The values are joined with commas, a comma, _ or % inside a value is percent escaped so the values round trip
+ * and the encoded list can be a field of an _ separated command. An empty list is a lone %, which no list of escaped
+ * values can produce(an empty string is a list of a single empty value).
+ * */
+public final class ValuesEncoding {
+
+	private static final String EMPTY_VALUES = "%"; // Encoded empty list
+
+	private ValuesEncoding(){
+	}
+
+	public static String encode(List<String> values){
+		if (values.isEmpty()){
+			return EMPTY_VALUES;
+		}
+		return values.stream()
+			.map(value -> value.replace("%", "%25").replace(",", "%2C").replace("_", "%5F"))
+			.collect(Collectors.joining(","));
+	}
+
+	/**
+	 * Values joined by encode
+	 * */
+	public static List<String> decode(String encodedValues){
+		if (encodedValues.equals(EMPTY_VALUES)){
+			return new ArrayList<>();
+		}
+		return Arrays.stream(encodedValues.split(",", -1))
+			.map(value -> value.replace("%2C", ",").replace("%5F", "_").replace("%25", "%"))
+			.collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,295 @@
+package cht.client;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+
+/**
+* The program measures the throughput and latency of a running server with a mix of pipelined gets and sets
+* of random keys, and the garbage collections the server did meanwhile(from its stats).
+* Meant to compare server configurations(e.g. --buffers, --io-threads, --partitions) on loopback.
+*/
+public class Benchmark {
+
+	/**
+	 * Sends the commands of a single connection, keeping a bounded number of them in flight
+	 */
+	private static class ConnectionLoad implements Runnable {
+		private final Channel _channel;
+		private final int _requestsCount;
+		private final Semaphore _requestsInFlight;
+		private final long[] _latencyNanos; // Per request, in the order of the replies
+		private final Random _random;
+
+		public ConnectionLoad(Channel channel, int requestsCount, long seed){
+			_channel = channel;
+			_requestsCount = requestsCount;
+			_requestsInFlight = new Semaphore(_pipelineDepth);
+			_latencyNanos = new long[requestsCount];
+			_random = new Random(seed);
+		}
+
+		@Override
+		public void run() {
+			ClientHandler handler = _channel.getPipeline().get(ClientHandler.class);
+			try {
+				for (int i = 0; i < _requestsCount; i++){
+					String key = KEY_PREFIX + _random.nextInt(_keysCount);
+					String command = _random.nextInt(100) < _readPercent ? "get_" + key : "set_" + key + "_" + _value;
+					if (_timeoutMillis > 0){
+						command = "@" + (System.currentTimeMillis() + _timeoutMillis) + "_" + command;
+					}
+
+					_requestsInFlight.acquire();
+					int requestIdx = i;
+					long startNanos = System.nanoTime();
+					handler.expectResponse(response -> {
+						_latencyNanos[requestIdx] = System.nanoTime() - startNanos;
+						if (response.startsWith(BUSY_MSG_PREFIX)){
+							_busyCount.incrementAndGet();
+						} else if (response.startsWith(EXPIRED_MSG_PREFIX)){
+							_expiredCount.incrementAndGet();
+						}
+						_requestsInFlight.release();
+					});
+					_channel.write(command + "\r\n");
+				}
+				// Wait for the replies of all the requests
+				_requestsInFlight.acquire(_pipelineDepth);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static final String DEFAULT_HOST = "localhost";
+	private static final int DEFAULT_PORT_NUMBER = 9999;
+	private static final int DEFAULT_CONNECTIONS_COUNT = 8;
+	private static final int DEFAULT_REQUESTS_COUNT = 100000; // Per connection
+	private static final int DEFAULT_PIPELINE_DEPTH = 32;
+	private static final int DEFAULT_KEYS_COUNT = 10000;
+	private static final int DEFAULT_READ_PERCENT = 80;
+	private static final int DEFAULT_VALUE_LENGTH = 16;
+	private static final String KEY_PREFIX = "bench:";
+	// Must match the replies of the server to the commands it did not execute
+	private static final String EXPIRED_MSG_PREFIX = "EXPIRED: ";
+	private static final String BUSY_MSG_PREFIX = "BUSY: ";
+
+	private static int _pipelineDepth;
+	private static int _keysCount;
+	private static int _readPercent;
+	private static String _value;
+	private static long _timeoutMillis; // Deadline of every request from the time it is sent, 0 if none
+	private static final AtomicLong _busyCount = new AtomicLong();
+	private static final AtomicLong _expiredCount = new AtomicLong();
+
+
+	/**
+	 * Set all the keys so the gets hit, pipelined on a single connection
+	 * */
+	private static void populate(Channel channel) throws InterruptedException {
+		Semaphore requestsInFlight = new Semaphore(_pipelineDepth);
+		ClientHandler handler = channel.getPipeline().get(ClientHandler.class);
+		for (int i = 0; i < _keysCount; i++){
+			requestsInFlight.acquire();
+			handler.expectResponse(response -> requestsInFlight.release());
+			channel.write("set_" + KEY_PREFIX + i + "_" + _value + "\r\n");
+		}
+		requestsInFlight.acquire(_pipelineDepth);
+	}
+
+	/**
+	 * Value of a single server stat, 0 if the server does not report it
+	 * */
+	private static String getStat(Channel channel, String name){
+		CompletableFuture<String> statsFuture = new CompletableFuture<>();
+		channel.getPipeline().get(ClientHandler.class).expectResponse(statsFuture::complete);
+		channel.write("stats\r\n");
+		for (String stat : statsFuture.join().split(",")){
+			if (stat.startsWith(name + ":")){
+				return stat.substring(name.length() + 1);
+			}
+		}
+		return "0";
+	}
+
+	private static void run(ClientBootstrap bootstrap, InetSocketAddress server, int connectionsCount, int requestsCount)
+			throws InterruptedException {
+		List<Channel> channels = new ArrayList<>();
+		for (int i = 0; i < connectionsCount; i++){
+			ChannelFuture future = bootstrap.connect(server).awaitUninterruptibly();
+			if (!future.isSuccess()){
+				System.err.println("Can not connect to server " + server + ".");
+				return;
+			}
+			channels.add(future.getChannel());
+		}
+
+		populate(channels.get(0));
+		long gcCountBefore = Long.parseLong(getStat(channels.get(0), "gc_count"));
+		long gcMillisBefore = Long.parseLong(getStat(channels.get(0), "gc_ms"));
+
+		List<ConnectionLoad> loads = new ArrayList<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < connectionsCount; i++){
+			ConnectionLoad load = new ConnectionLoad(channels.get(i), requestsCount, i);
+			loads.add(load);
+			threads.add(new Thread(load, "benchmark-" + i));
+		}
+		long startNanos = System.nanoTime();
+		for (Thread thread : threads){
+			thread.start();
+		}
+		for (Thread thread : threads){
+			thread.join();
+		}
+		long elapsedNanos = System.nanoTime() - startNanos;
+
+		long gcCount = Long.parseLong(getStat(channels.get(0), "gc_count")) - gcCountBefore;
+		long gcMillis = Long.parseLong(getStat(channels.get(0), "gc_ms")) - gcMillisBefore;
+		String ioInfo = "io_threads:" + getStat(channels.get(0), "io_threads") + ",buffers:" + getStat(channels.get(0), "buffers");
+		for (Channel channel : channels){
+			channel.close().awaitUninterruptibly();
+		}
+
+		long[] allLatencyNanos = new long[connectionsCount * requestsCount];
+		for (int i = 0; i < connectionsCount; i++){
+			System.arraycopy(loads.get(i)._latencyNanos, 0, allLatencyNanos, i * requestsCount, requestsCount);
+		}
+		Arrays.sort(allLatencyNanos);
+
+		long totalRequests = allLatencyNanos.length;
+		System.out.println("Server " + server + " (" + ioInfo + ")");
+		System.out.println("Requests: " + totalRequests + ", connections: " + connectionsCount + ", pipeline depth: " + _pipelineDepth
+				+ ", reads: " + _readPercent + "%");
+		System.out.println(String.format("Throughput: %.0f requests/sec", totalRequests * 1e9 / elapsedNanos));
+		System.out.println(String.format("Latency usec: p50 %.1f, p99 %.1f, p99.9 %.1f, max %.1f",
+				percentile(allLatencyNanos, 0.5) / 1e3, percentile(allLatencyNanos, 0.99) / 1e3,
+				percentile(allLatencyNanos, 0.999) / 1e3, allLatencyNanos[allLatencyNanos.length - 1] / 1e3));
+		System.out.println("Rejected: " + _busyCount.get() + " busy, " + _expiredCount.get() + " expired");
+		System.out.println(String.format("Server GC: %d collections, %d ms, %.1f collections per million requests",
+				gcCount, gcMillis, gcCount * 1e6 / totalRequests));
+	}
+
+	private static long percentile(long[] sortedValues, double fraction){
+		return sortedValues[Math.min((int) (sortedValues.length * fraction), sortedValues.length - 1)];
+	}
+
+	/**
+	 * Parse program commands
+	 * */
+	private static CommandLine getParsedArgs(String[] args) {
+	     Options options = new Options();
+
+		 Option portOpt = new Option("p", "port", true, "host port of the server to connect to");
+		 portOpt.setType(Integer.class);
+		 options.addOption(portOpt);
+
+		 Option hostOpt = new Option("h", "host", true, "host ip of the server to connect to");
+		 options.addOption(hostOpt);
+
+		 Option connectionsOpt = new Option("c", "connections", true, "number of connections, each sending from its own thread");
+		 connectionsOpt.setType(Integer.class);
+		 options.addOption(connectionsOpt);
+
+		 Option requestsOpt = new Option("n", "requests", true, "number of requests per connection");
+		 requestsOpt.setType(Integer.class);
+		 options.addOption(requestsOpt);
+
+		 Option pipelineOpt = new Option("d", "depth", true, "number of requests in flight per connection");
+		 pipelineOpt.setType(Integer.class);
+		 options.addOption(pipelineOpt);
+
+		 Option keysOpt = new Option("k", "keys", true, "number of distinct keys");
+		 keysOpt.setType(Integer.class);
+		 options.addOption(keysOpt);
+
+		 Option readPercentOpt = new Option("r", "read-percent", true, "percent of gets, the rest are sets");
+		 readPercentOpt.setType(Integer.class);
+		 options.addOption(readPercentOpt);
+
+		 Option valueLengthOpt = new Option("v", "value-length", true, "length of the set values");
+		 valueLengthOpt.setType(Integer.class);
+		 options.addOption(valueLengthOpt);
+
+		 Option timeoutOpt = new Option("t", "timeout", true, "milliseconds after which the server drops a request that was not executed yet");
+		 timeoutOpt.setType(Integer.class);
+		 options.addOption(timeoutOpt);
+
+
+		 CommandLineParser parser = new DefaultParser();
+		 HelpFormatter formatter = new HelpFormatter();
+		 CommandLine cmd = null;
+
+
+		 try {
+	        cmd = parser.parse(options, args);
+	     } catch (ParseException e) {
+			System.err.println(e.getMessage());
+			formatter.printHelp(Benchmark.class.getSimpleName(), options);
+			System.exit(-1);
+	     }
+	     return cmd;
+	}
+
+
+	public static void main(String[] args) {
+		CommandLine parsedArgs = getParsedArgs(args);
+
+		int port;
+		int connectionsCount;
+		int requestsCount;
+		int valueLength;
+		try {
+			port = Integer.parseInt(parsedArgs.getOptionValue("port", String.valueOf(DEFAULT_PORT_NUMBER)));
+			connectionsCount = Integer.parseInt(parsedArgs.getOptionValue("connections", String.valueOf(DEFAULT_CONNECTIONS_COUNT)));
+			requestsCount = Integer.parseInt(parsedArgs.getOptionValue("requests", String.valueOf(DEFAULT_REQUESTS_COUNT)));
+			_pipelineDepth = Integer.parseInt(parsedArgs.getOptionValue("depth", String.valueOf(DEFAULT_PIPELINE_DEPTH)));
+			_keysCount = Integer.parseInt(parsedArgs.getOptionValue("keys", String.valueOf(DEFAULT_KEYS_COUNT)));
+			_readPercent = Integer.parseInt(parsedArgs.getOptionValue("read-percent", String.valueOf(DEFAULT_READ_PERCENT)));
+			valueLength = Integer.parseInt(parsedArgs.getOptionValue("value-length", String.valueOf(DEFAULT_VALUE_LENGTH)));
+			_timeoutMillis = Long.parseLong(parsedArgs.getOptionValue("timeout", "0"));
+			if (_timeoutMillis < 0 || connectionsCount <= 0 || requestsCount <= 0 || _pipelineDepth <= 0 || _keysCount <= 0 || valueLength <= 0
+					|| _readPercent < 0 || _readPercent > 100){
+				throw new NumberFormatException();
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Port and counts must be positive integers, read percent between 0 and 100.");
+			return;
+		}
+		char[] valueChars = new char[valueLength];
+		Arrays.fill(valueChars, 'x');
+		_value = new String(valueChars);
+
+		ClientBootstrap bootstrap = new ClientBootstrap(
+		        new NioClientSocketChannelFactory(
+		                Executors.newCachedThreadPool(),
+		                Executors.newCachedThreadPool()));
+		bootstrap.setOption("tcpNoDelay", true);
+		bootstrap.setPipelineFactory(new ClientPipelineFactory());
+		try {
+			run(bootstrap, new InetSocketAddress(parsedArgs.getOptionValue("host", DEFAULT_HOST), port), connectionsCount, requestsCount);
+		} catch (InterruptedException e) {
+			System.err.println("Benchmark was interrupted.");
+		} finally {
+			bootstrap.releaseExternalResources();
+		}
+	}
+}
@@ -0,0 +1,573 @@
+package cht.client;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.Delimiters;
+import org.jboss.netty.handler.codec.string.StringDecoder;
+import org.jboss.netty.handler.codec.string.StringEncoder;
+
+import static org.jboss.netty.channel.Channels.*;
+
+import cht.cache.ListCache;
+import cht.cache.PartitionedCache;
+import cht.cache.PersistenceCodec;
+import cht.cache.ValueDictionary;
+import cht.cache.ValuesEncoding;
+
+/**
+* The program exports and imports the cache data in bulk. The export file is portable and sorted by key,
+* a line per key in <K>_<[V]> format, the values encoded with ValuesEncoding(comma separated, percent escaped).
+* Offline(-f, server is stopped) it reads/writes the persisted data file directly,
+* online(-s) it talks to the running servers, import sends pipelined mset batches routed to the shard of every key,
+* sized to the frame length every server currently accepts.
+*/
+public class BulkTool {
+
+	/**
+	 * Batches the lines of a single server into mset commands and keeps a bounded number of them in flight
+	 */
+	private static class BatchSender {
+		private final Channel _channel;
+		private final int _frameLength; // Longest command line the server accepts, in bytes
+		private final int _maxBatchLength;
+		private final Semaphore _batchesInFlight;
+		private final AtomicLong _importedKeys;
+		private final StringBuilder _batch;
+		private int _batchBytes; // UTF-8 length of the batch, the server frame length is in bytes
+		private int _batchKeys;
+
+		public BatchSender(Channel channel, int frameLength){
+			_channel = channel;
+			_frameLength = frameLength;
+			_maxBatchLength = Math.min(MAX_BATCH_LENGTH, frameLength);
+			_batchesInFlight = new Semaphore(MAX_BATCHES_IN_FLIGHT);
+			_importedKeys = new AtomicLong();
+			_batch = new StringBuilder(_maxBatchLength);
+		}
+
+		/**
+		 * Whether a batch of the line alone fits into the frame length of the server
+		 * */
+		public boolean fits(int lineBytes){
+			return lineBytes + "mset_".length() <= _frameLength;
+		}
+
+		public void add(String line, int lineBytes) throws InterruptedException {
+			if (_batchBytes > 0 && _batchBytes + 1 + lineBytes > _maxBatchLength){
+				flush();
+			}
+			String separator = _batch.length() > 0 ? "_" : "mset_";
+			_batch.append(separator).append(line);
+			_batchBytes += separator.length() + lineBytes;
+			_batchKeys++;
+		}
+
+		public void flush() throws InterruptedException {
+			if (_batch.length() == 0){
+				return;
+			}
+
+			// Wait for the server to catch up instead of buffering the whole file in memory
+			_batchesInFlight.acquire();
+			int batchKeys = _batchKeys;
+			_channel.getPipeline().get(ClientHandler.class).expectResponse(response -> {
+				if (response.startsWith("Bulk set of")){
+					_importedKeys.addAndGet(batchKeys);
+				} else {
+					System.err.println("Server " + _channel.getRemoteAddress() + " rejected a batch: " + response);
+				}
+				_batchesInFlight.release();
+			});
+			_channel.write(_batch.append("\r\n").toString());
+			_batch.setLength(0);
+			_batchBytes = 0;
+			_batchKeys = 0;
+		}
+
+		/**
+		 * Wait for the replies of all the batches
+		 * */
+		public long awaitReplies() throws InterruptedException {
+			_batchesInFlight.acquire(MAX_BATCHES_IN_FLIGHT);
+			return _importedKeys.get();
+		}
+	}
+
+	/**
+	 * Writes the lines of an online export to a file until exportend is received
+	 */
+	private static class ExportReceiver extends SimpleChannelUpstreamHandler {
+		private final BufferedWriter _out;
+		private final CountDownLatch _done;
+		private volatile IOException _failure;
+
+		public ExportReceiver(BufferedWriter out){
+			_out = out;
+			_done = new CountDownLatch(1);
+		}
+
+		@Override
+		public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+			String line = (String) e.getMessage();
+			try {
+				if (line.startsWith("exportend ")){
+					_out.close();
+					_done.countDown();
+					e.getChannel().close();
+					return;
+				}
+				_out.write(line);
+				_out.newLine();
+			} catch (IOException ioe) {
+				_failure = ioe;
+				_done.countDown();
+				e.getChannel().close();
+			}
+		}
+
+		@Override
+		public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
+			if (_done.getCount() > 0){
+				_failure = new IOException("Server " + e.getChannel().getRemoteAddress() + " closed the connection during export.");
+				_done.countDown();
+			}
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+			_failure = new IOException("Export from server failed.", e.getCause());
+			_done.countDown();
+			e.getChannel().close();
+		}
+
+		public void await() throws IOException, InterruptedException {
+			_done.await();
+			if (_failure != null){
+				throw _failure;
+			}
+		}
+
+		/**
+		 * Close the file of an export that was not completed, once no more lines are received
+		 * */
+		public void close() {
+			try {
+				_out.close();
+			} catch (IOException e) {
+				// The file of an incomplete export is deleted anyway
+			}
+		}
+	}
+
+	private static final int MAX_BATCH_LENGTH = 8000; // Batches are shorter if the server frame length is
+	private static final int DEFAULT_FRAME_LENGTH = 8192; // Must match the server default, for servers without config
+	private static final int CONFIG_REPLY_TIMEOUT_SEC = 10;
+	private static final int MAX_BATCHES_IN_FLIGHT = 64; // Per server
+	private static final int MAX_EXPORT_FRAME_LENGTH = 64 * 1024 * 1024; // Export lines hold whole lists
+	private static final String DEFAULT_COMPRESSION = "none";
+
+
+	/**
+	 * Export the persisted data file of a stopped server
+	 * */
+	private static void exportOffline(String dataFile, int partitionsCount, String outputFile) throws IOException {
+		ListCache cache = PartitionedCache.open(partitionsCount, 0, dataFile, new PersistenceCodec(PersistenceCodec.Type.NONE), null);
+		try {
+			cache.snapshot(snapshot -> {
+				try (BufferedWriter out = Files.newBufferedWriter(Paths.get(outputFile), StandardCharsets.UTF_8)) {
+					for (Map.Entry<String, LinkedList<String>> entry : snapshot.entrySet()){
+						out.write(entry.getKey() + "_" + ValuesEncoding.encode(entry.getValue()));
+						out.newLine();
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				System.out.println("Exported " + snapshot.size() + " keys to " + outputFile + ".");
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Import into the persisted data file of a stopped server, existing keys are overridden.
+	 * Lines are parsed in parallel and persisted with a single write.
+	 * */
+	private static void importOffline(String inputFile, String dataFile, int partitionsCount, PersistenceCodec codec) throws IOException {
+		Map<String, List<String>> entries;
+		try (Stream<String> lines = Files.lines(Paths.get(inputFile), StandardCharsets.UTF_8)) {
+			entries = lines.parallel()
+				.filter(line -> !line.isEmpty())
+				.collect(Collectors.toMap(
+						line -> line.substring(0, keyEnd(line)),
+						BulkTool::parseValues,
+						(v1, v2) -> v2)); // Same key twice, the later line wins
+		}
+
+		// The whole data set stays in memory, nothing is evicted before it is persisted.
+		// Interned values are shared by all the lists, so every distinct value is written once.
+		ListCache cache = PartitionedCache.open(partitionsCount, Integer.MAX_VALUE, dataFile, codec, new ValueDictionary());
+		cache.setAll(entries);
+		cache.flush();
+		System.out.println("Imported " + entries.size() + " keys to " + dataFile + ".");
+	}
+
+	/**
+	 * Export all the running servers into a single sorted file, the servers export in parallel.
+	 * If any server fails, the connections to all of them are closed and their partial exports are deleted.
+	 * */
+	private static void exportOnline(ClientBootstrap bootstrap, List<InetSocketAddress> servers, String outputFile)
+			throws IOException, InterruptedException {
+		List<File> shardFiles = new ArrayList<>();
+		List<ExportReceiver> receivers = new ArrayList<>();
+		List<Channel> channels = new ArrayList<>();
+		boolean exported = false;
+		try {
+			for (InetSocketAddress server : servers){
+				File shardFile = servers.size() == 1 ? new File(outputFile) : File.createTempFile("cht-export", ".txt");
+				shardFiles.add(shardFile);
+				ExportReceiver receiver = new ExportReceiver(Files.newBufferedWriter(shardFile.toPath(), StandardCharsets.UTF_8));
+				receivers.add(receiver);
+				bootstrap.setPipelineFactory(() -> {
+					ChannelPipeline pipeline = pipeline();
+					pipeline.addLast("framer", new DelimiterBasedFrameDecoder(
+							MAX_EXPORT_FRAME_LENGTH, Delimiters.lineDelimiter()));
+					pipeline.addLast("decoder", new StringDecoder());
+					pipeline.addLast("encoder", new StringEncoder());
+					pipeline.addLast("handler", receiver);
+					return pipeline;
+				});
+
+				Channel channel = connect(bootstrap, server);
+				if (channel == null){
+					return;
+				}
+				channels.add(channel);
+				channel.write("export\r\n");
+			}
+
+			for (ExportReceiver receiver : receivers){
+				receiver.await();
+			}
+
+			if (servers.size() > 1){
+				long exportedKeys = mergeSortedFiles(shardFiles, outputFile);
+				System.out.println("Exported " + exportedKeys + " keys to " + outputFile + ".");
+			} else {
+				System.out.println("Exported to " + outputFile + ".");
+			}
+			exported = true;
+		} finally {
+			// Stop receiving before the files are closed
+			for (Channel channel : channels){
+				channel.close().awaitUninterruptibly();
+			}
+			for (ExportReceiver receiver : receivers){
+				receiver.close();
+			}
+			for (File shardFile : shardFiles){
+				if (servers.size() > 1 || !exported){
+					shardFile.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merge the sorted exports of the shards into one sorted file, returns the number of keys
+	 * */
+	private static long mergeSortedFiles(List<File> sortedFiles, String outputFile) throws IOException {
+		// Next line of every file, ordered by key
+		PriorityQueue<Map.Entry<String, BufferedReader>> nextLines = new PriorityQueue<>(
+				(line1, line2) -> compareKeys(line1.getKey(), line2.getKey()));
+		List<BufferedReader> readers = new ArrayList<>();
+		long mergedKeys = 0;
+		try (BufferedWriter out = Files.newBufferedWriter(Paths.get(outputFile), StandardCharsets.UTF_8)) {
+			for (File sortedFile : sortedFiles){
+				BufferedReader reader = Files.newBufferedReader(sortedFile.toPath(), StandardCharsets.UTF_8);
+				readers.add(reader);
+				addNextLine(nextLines, reader);
+			}
+
+			String lastKey = null;
+			while (!nextLines.isEmpty()){
+				Map.Entry<String, BufferedReader> next = nextLines.poll();
+				String key = next.getKey().substring(0, keyEnd(next.getKey()));
+				// A key is owned by a single shard, unless the shards were changed, keep the first copy
+				if (!key.equals(lastKey)){
+					out.write(next.getKey());
+					out.newLine();
+					mergedKeys++;
+					lastKey = key;
+				}
+				addNextLine(nextLines, next.getValue());
+			}
+		} finally {
+			for (BufferedReader reader : readers){
+				reader.close();
+			}
+		}
+		return mergedKeys;
+	}
+
+	private static void addNextLine(PriorityQueue<Map.Entry<String, BufferedReader>> nextLines, BufferedReader reader) throws IOException {
+		String line = reader.readLine();
+		if (line != null){
+			nextLines.add(new SimpleImmutableEntry<>(line, reader));
+		}
+	}
+
+	private static int compareKeys(String line1, String line2){
+		return line1.substring(0, keyEnd(line1)).compareTo(line2.substring(0, keyEnd(line2)));
+	}
+
+	/**
+	 * Import into the running servers, every key is sent to the shard owning it
+	 * */
+	private static void importOnline(ClientBootstrap bootstrap, List<InetSocketAddress> servers, String inputFile)
+			throws IOException, InterruptedException {
+		bootstrap.setPipelineFactory(new ClientPipelineFactory());
+		ConsistentHashRing<InetSocketAddress> shardRing = new ConsistentHashRing<>();
+		Map<InetSocketAddress, BatchSender> senders = new LinkedHashMap<>();
+		List<Channel> channels = new ArrayList<>();
+		try {
+			for (InetSocketAddress server : servers){
+				Channel channel = connect(bootstrap, server);
+				if (channel == null){
+					return;
+				}
+				channels.add(channel);
+				senders.put(server, new BatchSender(channel, queryFrameLength(channel)));
+				shardRing.addNode(server);
+			}
+
+			long skippedLines = 0;
+			try (BufferedReader in = Files.newBufferedReader(Paths.get(inputFile), StandardCharsets.UTF_8)) {
+				for (String line = in.readLine(); line != null; line = in.readLine()){
+					if (line.isEmpty()){
+						continue;
+					}
+					int lineBytes = line.getBytes(StandardCharsets.UTF_8).length;
+					BatchSender sender = senders.get(shardRing.getNode(line.substring(0, keyEnd(line))));
+					if (!sender.fits(lineBytes)){
+						System.err.println("Line is too long for the server, skipping key: " + line.substring(0, keyEnd(line)));
+						skippedLines++;
+						continue;
+					}
+					sender.add(line, lineBytes);
+				}
+			}
+
+			long importedKeys = 0;
+			for (BatchSender sender : senders.values()){
+				sender.flush();
+			}
+			for (BatchSender sender : senders.values()){
+				importedKeys += sender.awaitReplies();
+			}
+			System.out.println("Imported " + importedKeys + " keys, skipped " + skippedLines + " lines.");
+		} finally {
+			// Also the channels already opened when a later server can not be connected or the import fails
+			List<ChannelFuture> closeFutures = new ArrayList<>();
+			for (Channel channel : channels){
+				closeFutures.add(channel.close());
+			}
+			for (ChannelFuture closeFuture : closeFutures){
+				closeFuture.awaitUninterruptibly();
+			}
+		}
+	}
+
+	/**
+	 * Frame length the server currently accepts, it may have been changed with config set
+	 * */
+	private static int queryFrameLength(Channel channel) throws InterruptedException {
+		BlockingQueue<String> reply = new ArrayBlockingQueue<>(1);
+		channel.getPipeline().get(ClientHandler.class).expectResponse(reply::add);
+		channel.write("config_get_frame-length\r\n");
+		String response = reply.poll(CONFIG_REPLY_TIMEOUT_SEC, TimeUnit.SECONDS);
+		String prefix = "frame-length:";
+		if (response != null && response.startsWith(prefix)){
+			try {
+				return Integer.parseInt(response.substring(prefix.length()));
+			} catch (NumberFormatException e) {
+				// Not a setting reply, use the default
+			}
+		}
+		return DEFAULT_FRAME_LENGTH;
+	}
+
+	private static Channel connect(ClientBootstrap bootstrap, InetSocketAddress server){
+		ChannelFuture future = bootstrap.connect(server).awaitUninterruptibly();
+		if (!future.isSuccess()){
+			System.err.println("Can not connect to server " + server + ".");
+			return null;
+		}
+		return future.getChannel();
+	}
+
+	/**
+	 * Index of the separator between the key and its values, keys may not contain _
+	 * */
+	private static int keyEnd(String line){
+		int separatorIdx = line.indexOf('_');
+		return separatorIdx >= 0 ? separatorIdx : line.length();
+	}
+
+	private static List<String> parseValues(String line){
+		int separatorIdx = keyEnd(line);
+		if (separatorIdx == line.length()){
+			return Collections.emptyList();
+		}
+		return ValuesEncoding.decode(line.substring(separatorIdx + 1));
+	}
+
+	/**
+	 * Parse program commands
+	 * */
+	private static CommandLine getParsedArgs(String[] args) {
+	     Options options = new Options();
+
+		 Option exportOpt = new Option("e", "export", true, "file to export the data to");
+		 options.addOption(exportOpt);
+
+		 Option importOpt = new Option("i", "import", true, "file to import the data from");
+		 options.addOption(importOpt);
+
+		 Option fileOpt = new Option("f", "file", true, "persisted data file of a stopped server, for offline export/import");
+		 options.addOption(fileOpt);
+
+		 Option serversOpt = new Option("s", "servers", true, "comma separated host:port list of running servers, for online export/import");
+		 options.addOption(serversOpt);
+
+		 Option compressionOpt = new Option("z", "compression", true, "codec of the offline imported data file, none or deflate");
+		 options.addOption(compressionOpt);
+
+		 Option compressionLevelOpt = new Option("l", "compression-level", true, "deflate level, 1(fastest) to 9(smallest)");
+		 compressionLevelOpt.setType(Integer.class);
+		 options.addOption(compressionLevelOpt);
+
+		 Option partitionsOpt = new Option("P", "partitions", true, "number of partitions of the offline data file, as the server was started with");
+		 partitionsOpt.setType(Integer.class);
+		 options.addOption(partitionsOpt);
+
+
+		 CommandLineParser parser = new DefaultParser();
+		 HelpFormatter formatter = new HelpFormatter();
+		 CommandLine cmd = null;
+
+
+		 try {
+	        cmd = parser.parse(options, args);
+	        if (cmd.hasOption("export") == cmd.hasOption("import") || cmd.hasOption("file") == cmd.hasOption("servers")){
+	        	throw new ParseException("Exactly one of -e/-i and exactly one of -f/-s must be given.");
+	        }
+	     } catch (ParseException e) {
+			System.err.println(e.getMessage());
+			formatter.printHelp(BulkTool.class.getSimpleName(), options);
+			System.exit(-1);
+	     }
+	     return cmd;
+	}
+
+
+	public static void main(String[] args) {
+		CommandLine parsedArgs = getParsedArgs(args);
+
+		try {
+			if (parsedArgs.hasOption("file")){
+				int partitionsCount;
+				try {
+					partitionsCount = Integer.parseInt(parsedArgs.getOptionValue("partitions", "1"));
+					if (partitionsCount <= 0){
+						throw new NumberFormatException();
+					}
+				} catch (NumberFormatException e) {
+					System.err.println("Number of partitions must be a positive integer.");
+					return;
+				}
+
+				if (parsedArgs.hasOption("export")){
+					exportOffline(parsedArgs.getOptionValue("file"), partitionsCount, parsedArgs.getOptionValue("export"));
+					return;
+				}
+
+				PersistenceCodec codec;
+				try {
+					codec = PersistenceCodec.fromName(parsedArgs.getOptionValue("compression", DEFAULT_COMPRESSION),
+							Integer.parseInt(parsedArgs.getOptionValue("compression-level", String.valueOf(PersistenceCodec.DEFAULT_LEVEL))));
+				} catch (IllegalArgumentException e) { // Also covers NumberFormatException
+					System.err.println("Compression must be none or deflate with an integer level between 1 and 9.");
+					return;
+				}
+				importOffline(parsedArgs.getOptionValue("import"), parsedArgs.getOptionValue("file"), partitionsCount, codec);
+				return;
+			}
+
+			List<InetSocketAddress> servers = Client.parseServers(parsedArgs.getOptionValue("servers"));
+			if (servers == null){
+				return;
+			}
+			ClientBootstrap bootstrap = new ClientBootstrap(
+			        new NioClientSocketChannelFactory(
+			                Executors.newCachedThreadPool(),
+			                Executors.newCachedThreadPool()));
+			try {
+				if (parsedArgs.hasOption("export")){
+					exportOnline(bootstrap, servers, parsedArgs.getOptionValue("export"));
+				} else {
+					importOnline(bootstrap, servers, parsedArgs.getOptionValue("import"));
+				}
+			} finally {
+				bootstrap.releaseExternalResources();
+			}
+		} catch (IOException | IllegalStateException e) { // Also covers data persisted with another number of partitions
+			System.err.println("Bulk operation failed.");
+			System.err.println("Cause: " + e.getMessage());
+		} catch (InterruptedException e) {
+			System.err.println("Bulk operation was interrupted.");
+		}
+	}
+}
@@ -3,6 +3,14 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.Executors;
 
 import org.apache.commons.cli.CommandLine;
@@ -28,29 +36,144 @@ import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 public class Client {
 
 	public static class ClientConfiguration{
-		private String _host;
-		private int _port;
+		private List<InetSocketAddress> _servers; // All the servers the keys are sharded between
+		private int _nearCacheMaxEntries; // Near cache size, 0 if get replies are not cached
+		private long _requestTimeoutMillis; // Deadline of every command from the time it is sent, 0 if none
 		
 		public ClientConfiguration(String host, int port){
-			_host = host;
-			_port = port;
+			_servers = new ArrayList<>();
+			_servers.add(new InetSocketAddress(host, port));
+		}
+		
+		public ClientConfiguration(List<InetSocketAddress> servers){
+			_servers = new ArrayList<>(servers);
 		}
 
 		public String getHost() {
-			return _host;
+			return _servers.get(0).getHostString();
 		}
 
 		public int getPort() {
-			return _port;
+			return _servers.get(0).getPort();
+		}
+		
+		public List<InetSocketAddress> getServers() {
+			return _servers;
+		}
+		
+		public int getNearCacheMaxEntries() {
+			return _nearCacheMaxEntries;
+		}
+		
+		public void setNearCacheMaxEntries(int nearCacheMaxEntries) {
+			_nearCacheMaxEntries = nearCacheMaxEntries;
+		}
+		
+		public long getRequestTimeoutMillis() {
+			return _requestTimeoutMillis;
+		}
+		
+		public void setRequestTimeoutMillis(long requestTimeoutMillis) {
+			_requestTimeoutMillis = requestTimeoutMillis;
+		}
+	}
+	
+	/**
+	 * Collects the getallkeys replies of all the shards and prints them as a single reply
+	 * */
+	private static class KeysMerger implements ResponseListener {
+		// Must match the reply of the server when no keys were found
+		private static final String NO_KEYS_MSG = "No keys are avaliable for pattern: ";
+		
+		private final String _pattern;
+		private final Set<String> _mergedKeys;
+		private String _rejection; // Reply of a shard that did not execute the command
+		private int _pendingReplies;
+		
+		public KeysMerger(String pattern, int expectedReplies){
+			_pattern = pattern;
+			_pendingReplies = expectedReplies;
+			_mergedKeys = new TreeSet<>(); // Every shard replies sorted, keep the merged reply sorted as well
+		}
+
+		@Override
+		public synchronized void onResponse(String response) {
+			if (isRejected(response)){
+				_rejection = response;
+			} else if (!response.startsWith(NO_KEYS_MSG)){
+				for (String key : response.split(",")){
+					_mergedKeys.add(key);
+				}
+			}
+			
+			// Print only once all the shards have replied, a partial reply is not printed
+			if (--_pendingReplies == 0){
+				if (_rejection != null){
+					System.out.println(_rejection);
+				} else {
+					System.out.println(_mergedKeys.isEmpty() ? NO_KEYS_MSG + _pattern : String.join(",", _mergedKeys));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Sums the countkeys replies of all the shards and prints the total
+	 * */
+	private static class CountMerger implements ResponseListener {
+		private long _total;
+		private String _rejection; // Reply of a shard that did not execute the command
+		private int _pendingReplies;
+		
+		public CountMerger(int expectedReplies){
+			_pendingReplies = expectedReplies;
+		}
+
+		@Override
+		public synchronized void onResponse(String response) {
+			if (isRejected(response)){
+				_rejection = response;
+			} else {
+				try {
+					_total += Long.parseLong(response);
+				} catch (NumberFormatException e) {
+					System.err.println("Unexpected countkeys reply: " + response);
+				}
+			}
+			
+			if (--_pendingReplies == 0){
+				System.out.println(_rejection != null ? _rejection : String.valueOf(_total));
+			}
 		}
 	}
 	
 	private static final String DEFAULT_HOST = "localhost";
 	private static final int DEFAULT_PORT_NUMBER = 9999;
+	private static final ResponseListener PRINT_RESPONSE = System.out::println;
+	// Must match the reply of the server when the key does not exist
+	private static final String NO_SUCH_KEY_MSG = "Following key does not exist: ";
+	// Must match the replies of the server to the commands it did not execute
+	private static final String EXPIRED_MSG_PREFIX = "EXPIRED: ";
+	private static final String BUSY_MSG_PREFIX = "BUSY: ";
+	// Commands modifying their key, the near cache entry of the key is dropped before they are sent
+	private static final Set<String> MODIFYING_COMMANDS = new HashSet<>(Arrays.asList(
+			"set", "rightadd", "leftadd", "lpop", "rpop", "blpop", "brpop"));
+	
 	private ClientConfiguration _clientConfig;
+	private ClientBootstrap _bootstrap;
+	private ConsistentHashRing<InetSocketAddress> _shardRing; // Routes each key to the server owning it
+	private Map<InetSocketAddress, Channel> _channels; // Open connection to every server
+	private Map<InetSocketAddress, ChannelFuture> _lastWriteFutures;
+	private NearCache _nearCache; // Hot get replies served locally, null if disabled
 	
 	public Client(ClientConfiguration clientConf){
 		_clientConfig = clientConf;
+		_shardRing = new ConsistentHashRing<>();
+		_channels = new LinkedHashMap<>();
+		_lastWriteFutures = new LinkedHashMap<>();
+		if (clientConf.getNearCacheMaxEntries() > 0){
+			_nearCache = new NearCache(clientConf.getNearCacheMaxEntries());
+		}
 	}
 	
 	/**
@@ -59,11 +182,20 @@ public class Client {
 	public void printHelp(){
 		System.out.println("---Welcome to CHT client application---\n\n"
 				+ "The available commands are:\n"
-				+ "getallkeys_<pattern> - to receive all keys matching the specified pattern, example: getallkeys_abc\n"
+				+ "getallkeys_<pattern> - to receive all keys matching the specified prefix or glob pattern(* and ?), several patterns\n"
+				+ "  may be separated by comma, example: getallkeys_abc, getallkeys_user:*:sessions,order:\n"
+				+ "countkeys_<pattern> - to count the keys matching the pattern, same patterns as getallkeys, example: countkeys_user:\n"
 				+ "rightadd_<K>_<V> - to add a value V to key K, from the right, example: rightadd_abc_123\n"
 				+ "leftadd_<K>_<V> - to add a value V to key K, from the left, example: leftadd_abc_123\n"
 				+ "set_<K>_<[V]> - to add a pair of key K with values list [V] separated by comma, example: set_abc_1,2,3\n"
-				+ "get_<K> - to get a values list by key K, example: get_abc\n\n"
+				+ "get_<K> - to get a values list by key K, example: get_abc\n"
+				+ "lpop_<K>/rpop_<K> - to remove and get a value of key K from the left/right, example: lpop_abc\n"
+				+ "blpop_<K>_<T>/brpop_<K>_<T> - same as lpop/rpop but waits up to T seconds(0 forever) for a value, example: blpop_abc_5\n"
+				+ "replinfo - to show the replication role and lag of the server\n"
+				+ "stats - to show the server statistics\n"
+				+ "slowlog_<N> - to show the last N commands slower than the server threshold, example: slowlog_10\n"
+				+ "config_get[_<name>]/config_set_<name>_<value> - to show/change the runtime settings of the servers, example: config_set_max-size_50000\n"
+				+ "nearcache - to show the near cache statistics of this client\n\n"
 				+ "Type 'help' for option menu and 'exit' to quit");
 	}
 	
@@ -73,21 +205,30 @@ public class Client {
 	public boolean isCmdValid(String cmd){
 		String[] parsedCmd = cmd.split("_");
 	
-		if (parsedCmd.length == 1){
+		if (parsedCmd[0].equals("config")){
 			
-			if (!(parsedCmd[0].equals("exit"))){
+			if (!((parsedCmd.length == 2 || parsedCmd.length == 3) && parsedCmd[1].equals("get")
+					|| parsedCmd.length == 4 && parsedCmd[1].equals("set"))){
+				return false;
+			}
+			
+		} else if (parsedCmd.length == 1){
+			
+			if (!(parsedCmd[0].equals("exit") || parsedCmd[0].equals("replinfo") || parsedCmd[0].equals("stats"))){
 				return false;
 			}
 			
 		} else if (parsedCmd.length == 2){
 			
-			if (!(parsedCmd[0].equals("get") || parsedCmd[0].equals("getallkeys"))){
+			if (!(parsedCmd[0].equals("get") || parsedCmd[0].equals("getallkeys") || parsedCmd[0].equals("countkeys")
+					|| parsedCmd[0].equals("lpop") || parsedCmd[0].equals("rpop") || parsedCmd[0].equals("slowlog"))){
 				return false;
 			}
 			
 		} else if (parsedCmd.length == 3){
 			
-			if (!(parsedCmd[0].equals("set") || parsedCmd[0].equals("rightadd") || parsedCmd[0].equals("leftadd"))){
+			if (!(parsedCmd[0].equals("set") || parsedCmd[0].equals("rightadd") || parsedCmd[0].equals("leftadd")
+					|| parsedCmd[0].equals("blpop") || parsedCmd[0].equals("brpop"))){
 				return false;
 			}
 			
@@ -99,32 +240,173 @@ public class Client {
 	}
 	
 	
+	/**
+	 * Connect to the server, returns null if the connection attempt failed
+	 * */
+	private Channel connect(InetSocketAddress serverAddress){
+		ChannelFuture future = _bootstrap.connect(serverAddress);
+		
+		// Wait until the connection attempt succeeds or fails.
+		Channel channel = future.awaitUninterruptibly().getChannel();
+		if (!future.isSuccess()) {
+			System.err.println("Client can not connect to server " + serverAddress + ".");
+			return null;
+		}
+		_channels.put(serverAddress, channel);
+		
+		if (_nearCache != null){
+			// Ask the server to push invalidations of the keys this client reads
+			ClientHandler handler = channel.getPipeline().get(ClientHandler.class);
+			handler.setInvalidationListener(_nearCache::invalidate);
+			handler.expectResponse(response -> {});
+			channel.write("tracking_on\r\n");
+		}
+		return channel;
+	}
+	
+	/**
+	 * Get an open connection to the server, reconnect if the previous one was closed
+	 * */
+	private Channel getConnectedChannel(InetSocketAddress serverAddress){
+		Channel channel = _channels.get(serverAddress);
+		if (channel != null && channel.isConnected()){
+			return channel;
+		}
+		System.out.println("Server " + serverAddress + " channel was disconnected. Reconnecting...");
+		if (channel != null && _nearCache != null){
+			// Invalidations sent while disconnected were lost
+			_nearCache.clear();
+		}
+		return connect(serverAddress);
+	}
+	
+	/**
+	 * Send the command to the server and register the listener for its reply
+	 * */
+	private boolean sendCommand(InetSocketAddress serverAddress, String cmd, ResponseListener listener){
+		Channel channel = getConnectedChannel(serverAddress);
+		if (channel == null){
+			return false;
+		}
+		channel.getPipeline().get(ClientHandler.class).expectResponse(listener);
+		long requestTimeoutMillis = _clientConfig.getRequestTimeoutMillis();
+		if (requestTimeoutMillis > 0 && !cmd.equals("exit")){
+			// Server drops the command if it gets to it after the deadline
+			cmd = "@" + (System.currentTimeMillis() + requestTimeoutMillis) + "_" + cmd;
+		}
+		_lastWriteFutures.put(serverAddress, channel.write(cmd + "\r\n"));
+		return true;
+	}
+	
+	/**
+	 * Server did not execute the command, it expired or the server was overloaded
+	 * */
+	private static boolean isRejected(String response){
+		return response.startsWith(EXPIRED_MSG_PREFIX) || response.startsWith(BUSY_MSG_PREFIX);
+	}
+	
+	/**
+	 * Route the command to the shard owning its key, commands without a single key are sent to all the shards
+	 * */
+	private boolean dispatchCommand(String cmd){
+		String[] parsedCmd = cmd.split("_");
+		
+		if (parsedCmd[0].equals("getallkeys")){
+			// Keys matching the pattern may be on any shard, ask all of them and merge
+			List<InetSocketAddress> servers = _shardRing.getNodes();
+			KeysMerger merger = new KeysMerger(parsedCmd[1], servers.size());
+			boolean sent = true;
+			for (InetSocketAddress server : servers){
+				if (!sendCommand(server, cmd, merger)){
+					// Count the unreachable shard as empty so the merged reply is still printed
+					merger.onResponse(KeysMerger.NO_KEYS_MSG + parsedCmd[1]);
+					sent = false;
+				}
+			}
+			return sent;
+		}
+		
+		else if (parsedCmd[0].equals("countkeys")){
+			// Every shard counts its own keys, sum them up
+			CountMerger merger = new CountMerger(_shardRing.getNodes().size());
+			boolean sent = true;
+			for (InetSocketAddress server : _shardRing.getNodes()){
+				if (!sendCommand(server, cmd, merger)){
+					merger.onResponse("0");
+					sent = false;
+				}
+			}
+			return sent;
+		}
+		
+		else if (parsedCmd[0].equals("get") && _nearCache != null){
+			return nearCacheGet(parsedCmd[1], cmd);
+		}
+		
+		else if (parsedCmd.length == 1 || parsedCmd[0].equals("slowlog") || parsedCmd[0].equals("config")){
+			// Server info and settings commands, every shard replies separately
+			boolean sent = true;
+			for (InetSocketAddress server : _shardRing.getNodes()){
+				sent &= sendCommand(server, cmd, PRINT_RESPONSE);
+			}
+			return sent;
+		}
+		
+		if (_nearCache != null && MODIFYING_COMMANDS.contains(parsedCmd[0])){
+			// Read your own writes, without waiting for the invalidation pushed by the server. Gets of the key
+			// still in flight are not cached either, their replies may predate the modification
+			_nearCache.invalidate(parsedCmd[1]);
+		}
+		return sendCommand(_shardRing.getNode(parsedCmd[1]), cmd, PRINT_RESPONSE);
+	}
+	
+	
+	/**
+	 * Serve the get from the near cache, or send it and cache the reply
+	 * */
+	private boolean nearCacheGet(String key, String cmd){
+		String cachedValue = _nearCache.get(key);
+		if (cachedValue != null){
+			System.out.println(cachedValue);
+			return true;
+		}
+		
+		long loadToken = _nearCache.beginLoad(key);
+		boolean sent = sendCommand(_shardRing.getNode(key), cmd, response -> {
+			_nearCache.completeLoad(key, response.startsWith(NO_SUCH_KEY_MSG) || isRejected(response) ? null : response, loadToken);
+			System.out.println(response);
+		});
+		if (!sent){
+			_nearCache.completeLoad(key, null, loadToken);
+		}
+		return sent;
+	}
+	
 	/**
 	 * Start the client and prompt user for commands
 	 * */
 	public void startClient() throws IOException{
 		// Configure the client.
-		ClientBootstrap bootstrap = new ClientBootstrap(
+		_bootstrap = new ClientBootstrap(
 		        new NioClientSocketChannelFactory(
 		                Executors.newCachedThreadPool(),
 		                Executors.newCachedThreadPool()));
 		
 		// Configure the pipeline factory.
-		bootstrap.setPipelineFactory(new ClientPipelineFactory());
+		_bootstrap.setPipelineFactory(new ClientPipelineFactory());
 		
-		// Start the connection attempt.
-		ChannelFuture future = bootstrap.connect(new InetSocketAddress(_clientConfig.getHost(), _clientConfig.getPort()));
-		
-		// Wait until the connection attempt succeeds or fails.
-		Channel channel = future.awaitUninterruptibly().getChannel();
-		if (!future.isSuccess()) {
-			System.err.println("Client can not connect to server. Exiting.");
-		    bootstrap.releaseExternalResources();
-		    return;
+		// Connect to every server and place it on the sharding ring.
+		for (InetSocketAddress serverAddress : _clientConfig.getServers()){
+			if (connect(serverAddress) == null){
+				System.err.println("Exiting.");
+				closeAllChannels();
+				_bootstrap.releaseExternalResources();
+				return;
+			}
+			_shardRing.addNode(serverAddress);
 		}
 		
 		// Read commands from the stdin.
-		ChannelFuture lastWriteFuture = null;
 		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 		printHelp();
 		for (;;) {
@@ -134,10 +416,6 @@ public class Client {
 		    	//End of stream has been reached.
 		        break;
 		    }
-		    else if (!channel.isConnected()){ //server was disconnected
-		    	System.out.println("Server channel was disconnected. Exiting...");
-		        break;
-		    }
 		    // If user typed the 'exit' command, wait until the server closes the connection.
 		    else if (cmd.toLowerCase().equals("exit")) {
 		    	System.out.println("Client is terminating...");
@@ -152,9 +430,16 @@ public class Client {
 		    	printHelp();
 		    	continue;
 		    }
+		    else if (cmd.toLowerCase().equals("nearcache")){
+		    	System.out.println(_nearCache != null ? _nearCache.getInfo() : "Near cache is disabled, enable it with -n.");
+		    	continue;
+		    }
 		    else if (isCmdValid(cmd)){
-			    // Sends the received valid cmd to the server.
-			    lastWriteFuture = channel.write(cmd + "\r\n");
+			    // Sends the received valid cmd to the server owning the key.
+		    	if (!dispatchCommand(cmd)){
+		    		System.out.println("Server channel was disconnected. Exiting...");
+		    		break;
+		    	}
 		    } else {
 		    	System.err.println("The following command is invalid: " + cmd);
 		    	printHelp();
@@ -162,17 +447,25 @@ public class Client {
 		    }
 		}
 		
-		// Wait until all messages are flushed before closing the channel.
-		if (lastWriteFuture != null) {
-		    lastWriteFuture.awaitUninterruptibly();
+		closeAllChannels();
+	
+	    // Shut down all thread pools to exit.
+	    _bootstrap.releaseExternalResources();
+	}
+	
+	/**
+	 * Wait until all messages are flushed and close all the connections
+	 * */
+	private void closeAllChannels(){
+		for (ChannelFuture lastWriteFuture : _lastWriteFutures.values()){
+			lastWriteFuture.awaitUninterruptibly();
 		}
 		
-		// Close the connection.  Make sure the close operation ends because
+		// Close the connections.  Make sure the close operation ends because
 		// all I/O operations are asynchronous in Netty.
-	    channel.close().awaitUninterruptibly();
-	
-	    // Shut down all thread pools to exit.
-	    bootstrap.releaseExternalResources();
+		for (Channel channel : _channels.values()){
+			channel.close().awaitUninterruptibly();
+		}
 	}
 	
 	/**
@@ -187,6 +480,17 @@ public class Client {
 		
 		 Option hostOpt = new Option("h", "host", true, "host ip of the server to connect to");
 		 options.addOption(hostOpt);
+		 
+		 Option serversOpt = new Option("s", "servers", true, "comma separated host:port list of servers to shard the keys between");
+		 options.addOption(serversOpt);
+		 
+		 Option nearCacheOpt = new Option("n", "near-cache", true, "number of get replies to cache on the client, invalidated by the servers");
+		 nearCacheOpt.setType(Integer.class);
+		 options.addOption(nearCacheOpt);
+		 
+		 Option timeoutOpt = new Option("t", "timeout", true, "milliseconds after which the servers drop a command that was not executed yet");
+		 timeoutOpt.setType(Integer.class);
+		 options.addOption(timeoutOpt);
 		
 		
 		 CommandLineParser parser = new DefaultParser();
@@ -205,6 +509,29 @@ public class Client {
 	}
 	
 	
+	/**
+	 * Parse host:port,host:port list of servers, returns null if the list is malformed
+	 * */
+	static List<InetSocketAddress> parseServers(String serversList){
+		List<InetSocketAddress> servers = new ArrayList<>();
+		for (String server : serversList.split(",")){
+			int separatorIdx = server.lastIndexOf(':');
+			if (separatorIdx <= 0){
+				System.err.println("Server address must be in host:port format: " + server);
+				return null;
+			}
+			try {
+				servers.add(new InetSocketAddress(server.substring(0, separatorIdx).trim(), 
+						Integer.parseInt(server.substring(separatorIdx + 1).trim())));
+			} catch (NumberFormatException e) {
+				System.err.println("Port number must be an integer: " + server);
+				return null;
+			}
+		}
+		return servers;
+	}
+	
+	
 	public static void main(String[] args) {
 		CommandLine parsedArgs = getParsedArgs(args);
 		int port = 0;
@@ -216,7 +543,30 @@ public class Client {
 		}
 		
 		// InetSocketAddress class already takes care of proper port numbers and ip formats so no need to check it twice
-		Client newClient = new Client(new ClientConfiguration(parsedArgs.getOptionValue("host", DEFAULT_HOST), port));
+		ClientConfiguration clientConf = new ClientConfiguration(parsedArgs.getOptionValue("host", DEFAULT_HOST), port);
+		if (parsedArgs.hasOption("servers")){
+			List<InetSocketAddress> servers = parseServers(parsedArgs.getOptionValue("servers"));
+			if (servers == null){
+				return;
+			}
+			clientConf = new ClientConfiguration(servers);
+		}
+		
+		try {
+			clientConf.setNearCacheMaxEntries(Integer.parseInt(parsedArgs.getOptionValue("near-cache", "0")));
+		} catch (NumberFormatException e) {
+			System.err.println("Near cache size must be an integer.");
+			return;
+		}
+		
+		try {
+			clientConf.setRequestTimeoutMillis(Long.parseLong(parsedArgs.getOptionValue("timeout", "0")));
+		} catch (NumberFormatException e) {
+			System.err.println("Timeout must be an integer number of milliseconds.");
+			return;
+		}
+		
+		Client newClient = new Client(clientConf);
 		try {
 			newClient.startClient();
 		} catch (IOException e) {
@@ -1,5 +1,7 @@
 package cht.client;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,10 +17,31 @@ public class ClientHandler extends SimpleChannelUpstreamHandler {
 	private static final Logger logger = Logger.getLogger(
 			ClientHandler.class.getSimpleName());
 	
+	// Must match the prefix of the invalidations pushed by the server
+	private static final String INVALIDATE_PREFIX = "_invalidate_";
+	
+	// Listeners waiting for replies, in the order the commands were written to the channel
+	private final Queue<ResponseListener> _pendingResponses;
+	// Receives the keys of the invalidations pushed by the server, they are not replies to any command
+	private volatile ResponseListener _invalidationListener;
+	
 	public ClientHandler(){
+		_pendingResponses = new ConcurrentLinkedQueue<>();
 		logger.setLevel(Level.WARNING);
 	}
 	
+	public void setInvalidationListener(ResponseListener invalidationListener){
+		_invalidationListener = invalidationListener;
+	}
+	
+	/**
+	 * Register a listener for the reply of the next command written to this channel.
+	 * Must be called before the command is written.
+	 * */
+	public void expectResponse(ResponseListener listener){
+		_pendingResponses.add(listener);
+	}
+	
 	
 	@Override
     public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
@@ -34,8 +57,22 @@ public class ClientHandler extends SimpleChannelUpstreamHandler {
 		String serverMsg = (String) e.getMessage();
 		if ("exit".equals(serverMsg)) {
 			e.getChannel().close(); // Server sent exit so close channel.
+			return;
+		}
+		
+		if (serverMsg.startsWith(INVALIDATE_PREFIX)){
+			ResponseListener invalidationListener = _invalidationListener;
+			if (invalidationListener != null){
+				invalidationListener.onResponse(serverMsg.substring(INVALIDATE_PREFIX.length()));
+			}
+			return;
+		}
+	
+		ResponseListener listener = _pendingResponses.poll();
+		if (listener != null) {
+			listener.onResponse(serverMsg);
 		} else {
-		    System.out.println(e.getMessage()); // Simply print the received message from server.
+		    System.out.println(serverMsg); // Nobody is waiting for it, simply print the received message from server.
 		}
 	}
 	 
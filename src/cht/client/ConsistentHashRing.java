@@ -0,0 +1,107 @@
+package cht.client;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing ring with virtual nodes, used to route keys between several server instances.
+ * Every node is placed on the ring multiple times so keys are spread evenly and adding/removing a node
+ * only moves the keys of its neighbours.
+ * */
+public class ConsistentHashRing<T> {
+
+	private static final int DEFAULT_VIRTUAL_NODES = 160;
+
+	private final TreeMap<Long, T> _ring; // Ring position -> owning node
+	private final Set<T> _nodes;
+	private final int _virtualNodes; // Number of ring positions for each node
+
+	public ConsistentHashRing(int virtualNodes){
+		_virtualNodes = virtualNodes > 0 ? virtualNodes : DEFAULT_VIRTUAL_NODES;
+		_ring = new TreeMap<>();
+		_nodes = new LinkedHashSet<>();
+	}
+
+	public ConsistentHashRing(){
+		this(DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * Place a node on the ring, its string representation is used as the hashing seed
+	 * */
+	public synchronized void addNode(T node){
+		if (!_nodes.add(node)){
+			return;
+		}
+		for (int i = 0; i < _virtualNodes; i++){
+			_ring.put(hash(node.toString() + "#" + i), node);
+		}
+	}
+
+	/**
+	 * Remove a node and all of its virtual nodes from the ring
+	 * */
+	public synchronized void removeNode(T node){
+		if (!_nodes.remove(node)){
+			return;
+		}
+		for (int i = 0; i < _virtualNodes; i++){
+			_ring.remove(hash(node.toString() + "#" + i), node);
+		}
+	}
+
+	/**
+	 * Get the node owning the key, the first ring position clockwise from the key hash
+	 * */
+	public synchronized T getNode(String key){
+		if (_ring.isEmpty()){
+			return null;
+		}
+		SortedMap<Long, T> tailMap = _ring.tailMap(hash(key));
+		return tailMap.isEmpty() ? _ring.firstEntry().getValue() : tailMap.get(tailMap.firstKey());
+	}
+
+	/**
+	 * Group keys by their owning node, preserving the keys order inside each group
+	 * */
+	public synchronized Map<T, List<String>> groupByNode(Collection<String> keys){
+		Map<T, List<String>> grouped = new LinkedHashMap<>();
+		for (String key : keys){
+			grouped.computeIfAbsent(getNode(key), node -> new ArrayList<>()).add(key);
+		}
+		return grouped;
+	}
+
+	public synchronized List<T> getNodes(){
+		return new ArrayList<>(_nodes);
+	}
+
+	/**
+	 * MD5 based hash, spreads similar keys(user:1, user:2...) much better than String.hashCode
+	 * */
+	private static long hash(String value){
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM is required to support MD5
+			throw new IllegalStateException(e);
+		}
+		byte[] digest = md5.digest(value.getBytes(StandardCharsets.UTF_8));
+		long hash = 0;
+		for (int i = 0; i < 8; i++){
+			hash = (hash << 8) | (digest[i] & 0xFF);
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,92 @@
+package cht.client;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded client side cache of get replies, least recently used keys are dropped first.
+ * Entries are removed when the server pushes an invalidation of their key or the client sends a modification of it.
+ * A reply whose key was invalidated while its get was in flight may already be stale, so it is not cached.
+ * */
+public class NearCache {
+
+	private final Map<String, String> _entries; // Key -> get reply, in access order
+	private final Map<String, Integer> _pendingLoads; // Key -> number of gets in flight
+	private final Map<String, Long> _invalidatedWhilePending; // Key -> last invalidation number, only for pending keys
+	private long _invalidationCount;
+	private long _hits;
+	private long _misses;
+
+	public NearCache(int maxEntries){
+		_entries = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		_pendingLoads = new HashMap<>();
+		_invalidatedWhilePending = new HashMap<>();
+	}
+
+	/**
+	 * Cached reply of the key, null if it has to be loaded from the server
+	 * */
+	public synchronized String get(String key){
+		String value = _entries.get(key);
+		if (value != null){
+			_hits++;
+		} else {
+			_misses++;
+		}
+		return value;
+	}
+
+	/**
+	 * A get of the key is about to be sent, returns the token to complete the load with
+	 * */
+	public synchronized long beginLoad(String key){
+		_pendingLoads.merge(key, 1, Integer::sum);
+		return _invalidationCount;
+	}
+
+	/**
+	 * The reply of a get has arrived, cache it unless the key was invalidated since the get was sent
+	 * */
+	public synchronized void completeLoad(String key, String value, long token){
+		Long lastInvalidation = _invalidatedWhilePending.get(key);
+		if (value != null && (lastInvalidation == null || lastInvalidation <= token)){
+			_entries.put(key, value);
+		}
+
+		if (_pendingLoads.merge(key, -1, Integer::sum) == 0){
+			_pendingLoads.remove(key);
+			_invalidatedWhilePending.remove(key);
+		}
+	}
+
+	public synchronized void invalidate(String key){
+		_entries.remove(key);
+		_invalidationCount++;
+		if (_pendingLoads.containsKey(key)){
+			_invalidatedWhilePending.put(key, _invalidationCount);
+		}
+	}
+
+	/**
+	 * Drop everything, invalidations could have been missed(e.g. the connection was lost)
+	 * */
+	public synchronized void clear(){
+		_entries.clear();
+		_invalidationCount++;
+		for (String key : _pendingLoads.keySet()){
+			_invalidatedWhilePending.put(key, _invalidationCount);
+		}
+	}
+
+	public synchronized String getInfo(){
+		return "entries:" + _entries.size() + ",hits:" + _hits + ",misses:" + _misses;
+	}
+}
@@ -0,0 +1,10 @@
+package cht.client;
+
+/**
+ * Callback for a single server reply. The server answers the commands of a connection in the order they
+ * were sent, so the listeners are matched with replies in FIFO order.
+ * */
+public interface ResponseListener {
+	
+	void onResponse(String response);
+}
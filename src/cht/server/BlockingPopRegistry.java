@@ -0,0 +1,169 @@
+package cht.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+
+import cht.cache.ListCache;
+
+/**
+ * Blocking pops waiting for values to be pushed. Waiters are parked without holding any thread, every push
+ * wakes waiters of the key in arrival order, exactly one waiter per available value.
+ * */
+public class BlockingPopRegistry {
+
+	/**
+	 * Receives the popped value, or null if the waiter has timed out
+	 * */
+	public interface PopCallback {
+		void onPop(String value);
+	}
+
+	private static class Waiter {
+		private final Channel _channel;
+		private final boolean _rightPop;
+		private final PopCallback _callback;
+		private Timeout _timeout;
+
+		public Waiter(Channel channel, boolean rightPop, PopCallback callback){
+			_channel = channel;
+			_rightPop = rightPop;
+			_callback = callback;
+		}
+	}
+
+	private final ListCache _serverCache;
+	private final Map<String, Deque<Waiter>> _waiters; // Key -> waiters in arrival order, guarded by this
+	private final Timer _timeoutTimer;
+
+	public BlockingPopRegistry(ListCache serverCache){
+		_serverCache = serverCache;
+		_waiters = new HashMap<>();
+		_timeoutTimer = new HashedWheelTimer();
+	}
+
+	/**
+	 * Pop a value if one is available, otherwise park the waiter and return null.
+	 * onPark runs before the waiter may be woken, timeout of 0 waits forever.
+	 * */
+	public synchronized String popOrPark(String key, boolean rightPop, long timeoutMillis, Channel channel,
+			Runnable onPark, PopCallback callback){
+		// Older waiters of the key are served first
+		if (!_waiters.containsKey(key)){
+			String value = pop(key, rightPop);
+			if (value != null){
+				return value;
+			}
+		}
+
+		onPark.run();
+		Waiter waiter = new Waiter(channel, rightPop, callback);
+		_waiters.computeIfAbsent(key, k -> new ArrayDeque<>()).add(waiter);
+		if (timeoutMillis > 0){
+			waiter._timeout = _timeoutTimer.newTimeout(timeout -> expire(key, waiter), timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		return null;
+	}
+
+	/**
+	 * Values were pushed to the key, hand them to the waiters
+	 * */
+	public void signal(String key){
+		List<Runnable> deliveries = new ArrayList<>();
+		synchronized (this) {
+			Deque<Waiter> keyWaiters = _waiters.get(key);
+			if (keyWaiters == null){
+				return;
+			}
+
+			Iterator<Waiter> waitersIter = keyWaiters.iterator();
+			while (waitersIter.hasNext()){
+				Waiter waiter = waitersIter.next();
+				if (!waiter._channel.isConnected()){
+					// Nobody to deliver to, do not waste a value on it
+					cancel(waiter);
+					waitersIter.remove();
+					continue;
+				}
+
+				String value = pop(key, waiter._rightPop);
+				if (value == null){
+					break;
+				}
+				cancel(waiter);
+				waitersIter.remove();
+				deliveries.add(() -> waiter._callback.onPop(value));
+			}
+
+			if (keyWaiters.isEmpty()){
+				_waiters.remove(key);
+			}
+		}
+
+		// Deliver outside of the lock, callbacks write to channels
+		for (Runnable delivery : deliveries){
+			delivery.run();
+		}
+	}
+
+	/**
+	 * The channel was closed, drop its waiters so waiters without a timeout do not stay until the next push to their key
+	 * */
+	public synchronized void removeChannel(Channel channel){
+		Iterator<Deque<Waiter>> keyWaitersIter = _waiters.values().iterator();
+		while (keyWaitersIter.hasNext()){
+			Deque<Waiter> keyWaiters = keyWaitersIter.next();
+			Iterator<Waiter> waitersIter = keyWaiters.iterator();
+			while (waitersIter.hasNext()){
+				Waiter waiter = waitersIter.next();
+				if (waiter._channel == channel){
+					cancel(waiter);
+					waitersIter.remove();
+				}
+			}
+			if (keyWaiters.isEmpty()){
+				keyWaitersIter.remove();
+			}
+		}
+	}
+
+	private void expire(String key, Waiter waiter){
+		boolean removed;
+		synchronized (this) {
+			Deque<Waiter> keyWaiters = _waiters.get(key);
+			removed = keyWaiters != null && keyWaiters.remove(waiter);
+			if (keyWaiters != null && keyWaiters.isEmpty()){
+				_waiters.remove(key);
+			}
+		}
+
+		// Value could have been delivered just before the timeout
+		if (removed){
+			waiter._callback.onPop(null);
+		}
+	}
+
+	private void cancel(Waiter waiter){
+		if (waiter._timeout != null){
+			waiter._timeout.cancel();
+		}
+	}
+
+	private String pop(String key, boolean rightPop){
+		return rightPop ? _serverCache.rightPop(key) : _serverCache.leftPop(key);
+	}
+
+	public void stop(){
+		_timeoutTimer.stop();
+	}
+}
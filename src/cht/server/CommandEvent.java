@@ -0,0 +1,18 @@
+package cht.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("cht.Command")
+@Label("Command")
+@Description("Parsing and execution of a single client command")
+@Category({"CHT", "Server"})
+@StackTrace(false)
+class CommandEvent extends jdk.jfr.Event {
+	
+	@Label("Command")
+	String command;
+}
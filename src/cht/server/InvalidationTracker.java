@@ -0,0 +1,111 @@
+package cht.server;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.netty.channel.Channel;
+
+import cht.cache.CacheWriteListener;
+import cht.cache.ListCache;
+
+/**
+ * Tracks which keys the connections with tracking enabled have read and pushes an invalidation to them
+ * when such a key is modified, so the clients may keep the values they read in a near cache.
+ * A key is tracked until its first modification, the client has to read it again to be notified again.
+ *
+ * Invalidation push frame: _invalidate_<key>. Keys and values may not contain _, so it can not be mistaken for a reply.
+ * */
+public class InvalidationTracker implements CacheWriteListener {
+
+	public static final String INVALIDATE_PREFIX = "_invalidate_";
+
+	// Clients drop keys from their near caches without telling the server, bound what is kept for them
+	private static final int MAX_TRACKED_KEYS = 1000000;
+
+	private final Set<Channel> _trackingChannels;
+	private final Map<String, Set<Channel>> _readers; // Key -> connections that may have it cached, oldest read first, guarded by this
+
+	public InvalidationTracker(ListCache serverCache){
+		_trackingChannels = ConcurrentHashMap.newKeySet();
+		_readers = new LinkedHashMap<>();
+		serverCache.addWriteListener(this);
+	}
+
+	public void enableTracking(Channel channel){
+		_trackingChannels.add(channel);
+	}
+
+	/**
+	 * Stop tracking the connection, its keys are dropped lazily when they are invalidated
+	 * */
+	public void disableTracking(Channel channel){
+		_trackingChannels.remove(channel);
+	}
+
+	public boolean isTracking(Channel channel){
+		return _trackingChannels.contains(channel);
+	}
+
+	/**
+	 * The connection is about to read the key. Must be called before the value is read,
+	 * so a modification right after the read is never missed.
+	 * */
+	public synchronized void track(String key, Channel channel){
+		_readers.computeIfAbsent(key, k -> new HashSet<>()).add(channel);
+		if (_readers.size() > MAX_TRACKED_KEYS){
+			// Can not track the oldest key anymore, its readers must not keep it
+			Iterator<Map.Entry<String, Set<Channel>>> oldestIter = _readers.entrySet().iterator();
+			Map.Entry<String, Set<Channel>> oldest = oldestIter.next();
+			oldestIter.remove();
+			push(oldest.getKey(), oldest.getValue());
+		}
+	}
+
+	@Override
+	public void onSet(String key, List<String> values) {
+		invalidate(key);
+	}
+
+	@Override
+	public void onAdd(String key, String value, boolean rightAdd) {
+		invalidate(key);
+	}
+
+	@Override
+	public void onPop(String key, boolean rightPop) {
+		invalidate(key);
+	}
+
+	private void invalidate(String key){
+		Set<Channel> readers;
+		synchronized (this) {
+			readers = _readers.remove(key);
+		}
+		if (readers != null){
+			push(key, readers);
+		}
+	}
+
+	private void push(String key, Set<Channel> readers){
+		// Modifications push under the cache write lock(or on the thread of their partition), so it is written before
+		// the reply of any later read of the key
+		String invalidateMsg = INVALIDATE_PREFIX + key + "\n";
+		for (Channel channel : readers){
+			if (channel.isConnected() && _trackingChannels.contains(channel)){
+				channel.write(invalidateMsg);
+			}
+		}
+	}
+
+	/**
+	 * Tracking state of the server
+	 * */
+	public synchronized String getInfo(){
+		return "tracking_clients:" + _trackingChannels.size() + ",tracked_keys:" + _readers.size();
+	}
+}
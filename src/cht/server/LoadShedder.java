@@ -0,0 +1,84 @@
+package cht.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rejects commands up front when the server is overloaded, so latency degrades gracefully instead of every command
+ * queueing behind the cache. A command is rejected when too many commands are already executing, or when the recent
+ * commands waited too long for the cache and another command is already executing. In the latter case a single command
+ * at a time is still admitted to probe the cache, the average recovers once the probes stop waiting.
+ * A limit of 0 disables that check.
+ * */
+public class LoadShedder {
+
+	private static final int LOCK_WAIT_AVG_WEIGHT = 8; // Every command moves the average by 1/8 of its difference
+
+	private volatile int _maxInFlight;
+	private volatile long _maxLockWaitNanos;
+	private final AtomicInteger _inFlight; // Admitted commands that did not complete yet
+	private volatile long _lockWaitAvgNanos; // Moving average of the cache wait of the completed commands
+	private final AtomicLong _shedCount;
+	private final AtomicLong _expiredCount;
+
+	public LoadShedder(int maxInFlight, long maxLockWaitMillis){
+		_maxInFlight = maxInFlight;
+		_maxLockWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxLockWaitMillis);
+		_inFlight = new AtomicInteger();
+		_shedCount = new AtomicLong();
+		_expiredCount = new AtomicLong();
+	}
+
+	public int getMaxInFlight(){
+		return _maxInFlight;
+	}
+	
+	public void setMaxInFlight(int maxInFlight){
+		_maxInFlight = maxInFlight;
+	}
+	
+	public long getMaxLockWaitMillis(){
+		return TimeUnit.NANOSECONDS.toMillis(_maxLockWaitNanos);
+	}
+	
+	public void setMaxLockWaitMillis(long maxLockWaitMillis){
+		_maxLockWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxLockWaitMillis);
+	}
+	
+	/**
+	 * Admit a command, complete must be called once it is done. Returns false if it must be rejected.
+	 * */
+	public boolean tryAdmit(){
+		int inFlight = _inFlight.incrementAndGet();
+		if ((_maxInFlight > 0 && inFlight > _maxInFlight)
+				|| (_maxLockWaitNanos > 0 && _lockWaitAvgNanos > _maxLockWaitNanos && inFlight > 1)){
+			_inFlight.decrementAndGet();
+			_shedCount.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Admitted command is done, lockWaitNanos is the time it waited for the cache
+	 * */
+	public void complete(long lockWaitNanos){
+		// Racy update, a lost sample only delays the average slightly
+		long lockWaitAvgNanos = _lockWaitAvgNanos;
+		_lockWaitAvgNanos = lockWaitAvgNanos + (lockWaitNanos - lockWaitAvgNanos) / LOCK_WAIT_AVG_WEIGHT;
+		_inFlight.decrementAndGet();
+	}
+
+	/**
+	 * Command was dropped since its deadline passed before it was executed
+	 * */
+	public void recordExpired(){
+		_expiredCount.incrementAndGet();
+	}
+
+	public String getInfo(){
+		return "in_flight:" + _inFlight.get() + ",lock_wait_avg_us:" + TimeUnit.NANOSECONDS.toMicros(_lockWaitAvgNanos)
+			+ ",shed_count:" + _shedCount.get() + ",expired_count:" + _expiredCount.get();
+	}
+}
@@ -0,0 +1,200 @@
+package cht.server;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.Delimiters;
+import org.jboss.netty.handler.codec.string.StringDecoder;
+import org.jboss.netty.handler.codec.string.StringEncoder;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+
+import static org.jboss.netty.channel.Channels.*;
+
+import cht.cache.ListCache;
+import cht.cache.ValuesEncoding;
+
+/**
+ * Replica side of the replication. Connects to the primary, replaces the local data with the primary snapshot
+ * and applies the streamed modifications. Reconnects and resynchronizes if the primary connection is lost.
+ * */
+public class ReplicaClient extends SimpleChannelUpstreamHandler {
+
+	private static final Logger logger = Logger.getLogger(
+			ReplicaClient.class.getSimpleName());
+
+	private static final int RECONNECT_DELAY_SEC = 5;
+	// Snapshot lines hold whole lists so allow much bigger frames than the clients are allowed to send
+	private static final int MAX_REPLICATION_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	private final InetSocketAddress _primaryAddress;
+	private final ListCache _serverCache;
+	private final ClientBootstrap _bootstrap;
+	private final Timer _reconnectTimer;
+
+	private volatile Channel _primaryChannel;
+	private volatile boolean _running;
+	private volatile boolean _connected;
+	private volatile boolean _syncing; // Full snapshot is being received
+	private volatile long _appliedOffset; // Offset of the last modification applied locally
+	private volatile long _primaryOffset; // Last offset the primary has reported
+	private volatile long _lagMillis; // Delay between the primary applying a modification and the replica applying it
+	private volatile long _lastPrimaryMsgTime;
+
+	public ReplicaClient(InetSocketAddress primaryAddress, ListCache serverCache){
+		_primaryAddress = primaryAddress;
+		_serverCache = serverCache;
+		_reconnectTimer = new HashedWheelTimer();
+		_bootstrap = new ClientBootstrap(
+				new NioClientSocketChannelFactory(
+						Executors.newCachedThreadPool(),
+						Executors.newCachedThreadPool()));
+		_bootstrap.setPipelineFactory(() -> {
+			ChannelPipeline pipeline = pipeline();
+			pipeline.addLast("framer", new DelimiterBasedFrameDecoder(
+					MAX_REPLICATION_FRAME_LENGTH, Delimiters.lineDelimiter()));
+			pipeline.addLast("decoder", new StringDecoder());
+			pipeline.addLast("encoder", new StringEncoder());
+			pipeline.addLast("handler", this);
+			return pipeline;
+		});
+		logger.setLevel(Level.WARNING);
+	}
+
+	public void start(){
+		_running = true;
+		connect();
+	}
+
+	public void stop(){
+		_running = false;
+		_reconnectTimer.stop();
+		if (_primaryChannel != null){
+			_primaryChannel.close().awaitUninterruptibly();
+		}
+		_bootstrap.releaseExternalResources();
+	}
+
+	private void connect(){
+		_bootstrap.connect(_primaryAddress).addListener((ChannelFutureListener) future -> {
+			if (future.isSuccess()){
+				_connected = true;
+				_primaryChannel = future.getChannel();
+				// Ask for the snapshot and the modifications stream
+				_primaryChannel.write("sync\r\n");
+			} else {
+				logger.warning("Can not connect to primary " + _primaryAddress + ", retrying.");
+				scheduleReconnect();
+			}
+		});
+	}
+
+	private void scheduleReconnect(){
+		if (_running){
+			_reconnectTimer.newTimeout(timeout -> connect(), RECONNECT_DELAY_SEC, TimeUnit.SECONDS);
+		}
+	}
+
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+		String replMsg = (String) e.getMessage();
+		_lastPrimaryMsgTime = System.currentTimeMillis();
+
+		if (replMsg.startsWith("repl ")){
+			// repl <offset> <timestamp> <command>
+			String[] parsedMsg = replMsg.split(" ", 4);
+			applyCommand(parsedMsg[3]);
+			_appliedOffset = Long.parseLong(parsedMsg[1]);
+			_primaryOffset = Math.max(_primaryOffset, _appliedOffset);
+			_lagMillis = Math.max(0, _lastPrimaryMsgTime - Long.parseLong(parsedMsg[2]));
+		}
+		else if (replMsg.startsWith("ping ")){
+			// ping <offset> <timestamp>
+			String[] parsedMsg = replMsg.split(" ");
+			_primaryOffset = Long.parseLong(parsedMsg[1]);
+			if (_appliedOffset >= _primaryOffset){
+				_lagMillis = 0;
+			}
+			e.getChannel().write("replack_" + _appliedOffset + "\r\n");
+		}
+		else if (replMsg.startsWith("fullsync ")){
+			// Local data may be stale, the snapshot replaces it completely
+			_syncing = true;
+			_serverCache.clear();
+		}
+		else if (replMsg.startsWith("fullsyncend ")){
+			_appliedOffset = Long.parseLong(replMsg.split(" ")[1]);
+			_primaryOffset = _appliedOffset;
+			_syncing = false;
+		}
+		else if (_syncing){
+			applyCommand(replMsg);
+		}
+	}
+
+	/**
+	 * Apply a modification command in the clients protocol format
+	 * */
+	private void applyCommand(String command){
+		String[] parsedCommand = command.split("_", 3);
+		String value = parsedCommand.length == 3 ? parsedCommand[2] : "";
+		if (parsedCommand[0].equals("rightadd")){
+			_serverCache.rightAdd(parsedCommand[1], value);
+		}
+		else if (parsedCommand[0].equals("leftadd")){
+			_serverCache.leftAdd(parsedCommand[1], value);
+		}
+		else if (parsedCommand[0].equals("rpop")){
+			_serverCache.rightPop(parsedCommand[1]);
+		}
+		else if (parsedCommand[0].equals("lpop")){
+			_serverCache.leftPop(parsedCommand[1]);
+		}
+		else if (parsedCommand[0].equals("set")){
+			_serverCache.set(parsedCommand[1], ValuesEncoding.decode(value));
+		}
+	}
+
+	@Override
+	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
+		logger.warning("Connection to primary " + _primaryAddress + " was closed, reconnecting.");
+		_connected = false;
+		_syncing = false;
+		scheduleReconnect();
+	}
+
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+		logger.log(
+				Level.WARNING,
+				"Unexpected exception in replication stream.",
+				e.getCause());
+		e.getChannel().close();
+	}
+
+	/**
+	 * Replication state of the replica
+	 * */
+	public String getInfo(){
+		return "role:replica,primary:" + _primaryAddress.getHostString() + ":" + _primaryAddress.getPort()
+			+ ",state:" + (!_connected ? "disconnected" : _syncing ? "syncing" : "streaming")
+			+ ",offset:" + _appliedOffset
+			+ ",primary_offset:" + _primaryOffset
+			+ ",lag_ms:" + _lagMillis
+			+ ",last_primary_msg_ms_ago:" + (_lastPrimaryMsgTime == 0 ? -1 : System.currentTimeMillis() - _lastPrimaryMsgTime);
+	}
+}
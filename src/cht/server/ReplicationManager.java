@@ -0,0 +1,141 @@
+package cht.server;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jboss.netty.channel.Channel;
+
+import cht.cache.CacheWriteListener;
+import cht.cache.ListCache;
+import cht.cache.ValuesEncoding;
+
+/**
+ * Primary side of the replication. Every replica gets a full snapshot of the cache when it connects and then
+ * every modification of the cache is streamed to it asynchronously, tagged with an increasing offset.
+ *
+ * Replication stream protocol(primary to replica):
+ * fullsync <offset> - snapshot start, followed by set commands for all the keys
+ * fullsyncend <offset> - snapshot end
+ * repl <offset> <timestamp> <command> - a single modification, same command format as the clients use
+ * The values of a replicated set are encoded with ValuesEncoding, values added with rightadd/leftadd may contain the comma separator.
+ * ping <offset> <timestamp> - heartbeat, the replica answers with replack_<offset>
+ * */
+public class ReplicationManager implements CacheWriteListener {
+
+	private static final Logger logger = Logger.getLogger(
+			ReplicationManager.class.getSimpleName());
+
+	private static final int HEARTBEAT_INTERVAL_SEC = 1;
+
+	private final ListCache _serverCache;
+	private final Map<Channel, Long> _replicas; // Replica channel -> last offset acknowledged by the replica
+	private final ScheduledExecutorService _heartbeatExecutor;
+
+	// Offset of the last modification, only modified by propagate
+	private volatile long _offset;
+
+	public ReplicationManager(ListCache serverCache){
+		_serverCache = serverCache;
+		_replicas = new ConcurrentHashMap<>();
+		_heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "replication-heartbeat");
+			thread.setDaemon(true);
+			return thread;
+		});
+		_heartbeatExecutor.scheduleAtFixedRate(this::sendHeartbeats, HEARTBEAT_INTERVAL_SEC,
+				HEARTBEAT_INTERVAL_SEC, TimeUnit.SECONDS);
+		_serverCache.addWriteListener(this);
+		logger.setLevel(Level.WARNING);
+	}
+
+	/**
+	 * Send the full snapshot to a new replica and start streaming modifications to it.
+	 * */
+	public void addReplica(Channel replicaChannel){
+		// Snapshot is taken with writes blocked, so the stream continues exactly where the snapshot ends
+		_serverCache.snapshot(snapshot -> {
+			long offset = _offset;
+			replicaChannel.write("fullsync " + offset + "\n");
+			for (Map.Entry<String, LinkedList<String>> entry : snapshot.entrySet()){
+				replicaChannel.write("set_" + entry.getKey() + "_" + ValuesEncoding.encode(entry.getValue()) + "\n");
+			}
+			replicaChannel.write("fullsyncend " + offset + "\n");
+			_replicas.put(replicaChannel, offset);
+		});
+		logger.info("Replica " + replicaChannel.getRemoteAddress() + " was added.");
+	}
+
+	public void removeReplica(Channel replicaChannel){
+		_replicas.remove(replicaChannel);
+	}
+
+	/**
+	 * Replica confirmed it has applied all the modifications up to the offset
+	 * */
+	public void acknowledge(Channel replicaChannel, long offset){
+		_replicas.replace(replicaChannel, offset);
+	}
+
+	@Override
+	public void onSet(String key, List<String> values) {
+		propagate("set_" + key + "_" + ValuesEncoding.encode(values));
+	}
+
+	@Override
+	public void onAdd(String key, String value, boolean rightAdd) {
+		propagate((rightAdd ? "rightadd_" : "leftadd_") + key + "_" + value);
+	}
+
+	@Override
+	public void onPop(String key, boolean rightPop) {
+		propagate((rightPop ? "rpop_" : "lpop_") + key);
+	}
+
+	private synchronized void propagate(String command){
+		// Called with the modification(under the cache write lock, or on the thread of the modified partition) so offsets
+		// are assigned in the modifications order, partitions modify in parallel so the offset is also guarded by this
+		long offset = ++_offset;
+		if (_replicas.isEmpty()){
+			return;
+		}
+		String replMsg = "repl " + offset + " " + System.currentTimeMillis() + " " + command + "\n";
+		for (Channel replicaChannel : _replicas.keySet()){
+			replicaChannel.write(replMsg);
+		}
+	}
+
+	private void sendHeartbeats(){
+		String pingMsg = "ping " + _offset + " " + System.currentTimeMillis() + "\n";
+		for (Channel replicaChannel : _replicas.keySet()){
+			if (replicaChannel.isConnected()){
+				replicaChannel.write(pingMsg);
+			} else {
+				removeReplica(replicaChannel);
+			}
+		}
+	}
+
+	/**
+	 * Replication state of the primary, the lag of every replica is in number of modifications
+	 * */
+	public String getInfo(){
+		long offset = _offset;
+		StringBuilder info = new StringBuilder("role:primary,offset:" + offset + ",replicas:" + _replicas.size());
+		for (Map.Entry<Channel, Long> replica : _replicas.entrySet()){
+			info.append(",replica:").append(replica.getKey().getRemoteAddress())
+				.append(" lag:").append(offset - replica.getValue());
+		}
+		return info.toString();
+	}
+
+	public void stop(){
+		_heartbeatExecutor.shutdownNow();
+	}
+}
@@ -0,0 +1,123 @@
+package cht.server;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Server parameters that may be tuned while the server runs. A setting that is also a command line option has its name.
+ * Settings are read and changed by the config command(from a client or the server console) and may be given
+ * on startup in a config file of <name>=<value> lines.
+ *
+ * config get - all the settings as <name>:<value>,..., also a bare config
+ * config get <name> - a single setting
+ * config set <name> <value> - change a setting, takes effect right away
+ * */
+public class RuntimeSettings {
+
+	/**
+	 * Integer setting with its valid range
+	 * */
+	private static class Setting {
+		private final long _minValue;
+		private final long _maxValue;
+		private final LongSupplier _getter;
+		private final LongConsumer _setter;
+
+		Setting(long minValue, long maxValue, LongSupplier getter, LongConsumer setter){
+			_minValue = minValue;
+			_maxValue = maxValue;
+			_getter = getter;
+			_setter = setter;
+		}
+	}
+
+	private final Map<String, Setting> _settings; // Listed in the order they were added
+
+	public RuntimeSettings(){
+		_settings = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Add an integer setting, values out of the range are refused
+	 * */
+	public void addSetting(String name, long minValue, long maxValue, LongSupplier getter, LongConsumer setter){
+		_settings.put(name, new Setting(minValue, maxValue, getter, setter));
+	}
+
+	public String get(String name){
+		Setting setting = getSetting(name);
+		return name + ":" + setting._getter.getAsLong();
+	}
+
+	public String getAll(){
+		StringBuilder all = new StringBuilder();
+		for (Map.Entry<String, Setting> entry : _settings.entrySet()){
+			if (all.length() > 0){
+				all.append(",");
+			}
+			all.append(entry.getKey()).append(":").append(entry.getValue()._getter.getAsLong());
+		}
+		return all.toString();
+	}
+
+	/**
+	 * Validate and apply the value. Throws IllegalArgumentException if the setting is unknown or the value is invalid.
+	 * */
+	public void set(String name, String value){
+		Setting setting = getSetting(name);
+		String invalidValueMsg = "Setting " + name + " must be an integer between " + setting._minValue
+				+ " and " + setting._maxValue + ": " + value;
+		long parsedValue;
+		try {
+			parsedValue = Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(invalidValueMsg);
+		}
+		if (parsedValue < setting._minValue || parsedValue > setting._maxValue){
+			throw new IllegalArgumentException(invalidValueMsg);
+		}
+		setting._setter.accept(parsedValue);
+	}
+
+	/**
+	 * Apply all the settings of a config file. Throws IllegalArgumentException on the first invalid one.
+	 * */
+	public void setAll(Properties settings){
+		for (String name : settings.stringPropertyNames()){
+			set(name, settings.getProperty(name));
+		}
+	}
+
+	/**
+	 * Execute the arguments of a config command(get [name] or set <name> <value>) and return its reply
+	 * */
+	public String execute(String[] args){
+		try {
+			if (args.length == 0 || (args.length == 1 && args[0].equals("get"))){
+				return getAll();
+			}
+			else if (args.length == 2 && args[0].equals("get")){
+				return get(args[1]);
+			}
+			else if (args.length == 3 && args[0].equals("set")){
+				set(args[1], args[2]);
+				return "Setting " + args[1] + " was changed to " + args[2] + " successfully.";
+			}
+		} catch (IllegalArgumentException e) {
+			return e.getMessage();
+		}
+		return "Unknown config command: " + String.join(" ", Arrays.asList(args));
+	}
+
+	private Setting getSetting(String name){
+		Setting setting = _settings.get(name);
+		if (setting == null){
+			throw new IllegalArgumentException("Unknown setting: " + name + ", settings are " + String.join(",", _settings.keySet()));
+		}
+		return setting;
+	}
+}
@@ -1,9 +1,13 @@
 package cht.server;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Properties;
 import java.util.concurrent.Executors;
 
 import org.apache.commons.cli.CommandLine;
@@ -14,10 +18,13 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.DirectChannelBufferFactory;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 
+import cht.cache.PersistenceCodec;
+
 /**
 * The program implements server application that starts a server and may serve multiple clients
 * with data using a predefined protocol.
@@ -32,6 +39,18 @@ public class Server {
 		private String _host;
 		private String _filePath;
 		private int _port;
+		private InetSocketAddress _primaryAddress; // Primary to replicate from, null if this server is a primary
+		private PersistenceCodec _persistenceCodec = new PersistenceCodec(PersistenceCodec.Type.NONE);
+		private long _slowLogThresholdMillis = DEFAULT_SLOW_LOG_THRESHOLD_MS;
+		private int _slowLogMaxEntries = DEFAULT_SLOW_LOG_MAX_ENTRIES;
+		private int _partitionsCount = DEFAULT_PARTITIONS_COUNT;
+		private int _ioThreadsCount = DEFAULT_IO_THREADS_COUNT;
+		private boolean _directBuffers = false; // Read socket data into direct buffers sliced from preallocated chunks
+		private int _maxInFlight; // Commands executing at once to start shedding at, 0 if unlimited
+		private long _maxLockWaitMillis; // Average cache wait to start shedding at, 0 if unlimited
+		private boolean _internValues; // Share a single instance of every distinct list value
+		private int _maxFrameLength = DEFAULT_MAX_FRAME_LENGTH; // Longest command line
+		private Properties _settings = new Properties(); // Runtime settings of the config file, applied on startup
 		
 		public ServerConfiguration(String host, int port, String filepathToPersist){
 			_host = host;
@@ -50,11 +69,117 @@ public class Server {
 		public int getPort() {
 			return _port;
 		}
+		
+		public InetSocketAddress getPrimaryAddress() {
+			return _primaryAddress;
+		}
+		
+		public void setPrimaryAddress(InetSocketAddress primaryAddress) {
+			_primaryAddress = primaryAddress;
+		}
+		
+		public PersistenceCodec getPersistenceCodec() {
+			return _persistenceCodec;
+		}
+		
+		public void setPersistenceCodec(PersistenceCodec persistenceCodec) {
+			_persistenceCodec = persistenceCodec;
+		}
+		
+		public long getSlowLogThresholdMillis() {
+			return _slowLogThresholdMillis;
+		}
+		
+		public void setSlowLogThresholdMillis(long slowLogThresholdMillis) {
+			_slowLogThresholdMillis = slowLogThresholdMillis;
+		}
+		
+		public int getSlowLogMaxEntries() {
+			return _slowLogMaxEntries;
+		}
+		
+		public void setSlowLogMaxEntries(int slowLogMaxEntries) {
+			_slowLogMaxEntries = slowLogMaxEntries;
+		}
+		
+		public int getPartitionsCount() {
+			return _partitionsCount;
+		}
+		
+		public void setPartitionsCount(int partitionsCount) {
+			_partitionsCount = partitionsCount;
+		}
+		
+		public int getIoThreadsCount() {
+			return _ioThreadsCount;
+		}
+		
+		public void setIoThreadsCount(int ioThreadsCount) {
+			_ioThreadsCount = ioThreadsCount;
+		}
+		
+		public boolean isDirectBuffers() {
+			return _directBuffers;
+		}
+		
+		public void setDirectBuffers(boolean directBuffers) {
+			_directBuffers = directBuffers;
+		}
+		
+		public int getMaxInFlight() {
+			return _maxInFlight;
+		}
+		
+		public void setMaxInFlight(int maxInFlight) {
+			_maxInFlight = maxInFlight;
+		}
+		
+		public long getMaxLockWaitMillis() {
+			return _maxLockWaitMillis;
+		}
+		
+		public void setMaxLockWaitMillis(long maxLockWaitMillis) {
+			_maxLockWaitMillis = maxLockWaitMillis;
+		}
+		
+		public boolean isInternValues() {
+			return _internValues;
+		}
+		
+		public void setInternValues(boolean internValues) {
+			_internValues = internValues;
+		}
+		
+		public int getMaxFrameLength() {
+			return _maxFrameLength;
+		}
+		
+		public void setMaxFrameLength(int maxFrameLength) {
+			_maxFrameLength = maxFrameLength;
+		}
+		
+		public Properties getSettings() {
+			return _settings;
+		}
+		
+		public void setSettings(Properties settings) {
+			_settings = settings;
+		}
 	}
 	
 	private static final String DEFAULT_HOST = "localhost";
 	private static final String DEFAULT_DATA_PERSISTANCE_PATH = "data.ser";
 	private static final int DEFAULT_PORT_NUMBER = 9999;
+	private static final String DEFAULT_COMPRESSION = "none";
+	private static final long DEFAULT_SLOW_LOG_THRESHOLD_MS = 10;
+	private static final int DEFAULT_SLOW_LOG_MAX_ENTRIES = 128;
+	private static final int DEFAULT_PARTITIONS_COUNT = 1;
+	private static final int DEFAULT_IO_THREADS_COUNT = Runtime.getRuntime().availableProcessors() * 2;
+	private static final String DEFAULT_BUFFERS = "heap";
+	private static final int DEFAULT_MAX_FRAME_LENGTH = 8192;
+	// Outbound buffer size per connection to stop/resume reading its commands at
+	private static final int WRITE_BUFFER_HIGH_WATER_MARK = 64 * 1024;
+	private static final int WRITE_BUFFER_LOW_WATER_MARK = 32 * 1024;
 	
 	private ServerConfiguration _serverConfig;
 	private ServerPipelineFactory _serverPipelineFactory;
@@ -74,14 +199,28 @@ public class Server {
 		File fileToPersistTo = new File(_serverConfig.getFilepathToPersist());
 		fileToPersistTo.createNewFile(); 
 		
+		// Configure the pipeline factory first, it loads the persisted data and may refuse it.
+		_serverPipelineFactory = new ServerPipelineFactory(_serverConfig);
+		
 		// Configure the server.
+		// JDK NIO selects with epoll on Linux, every connection is served by one of a fixed number of I/O threads.
 		ServerBootstrap bootstrap = new ServerBootstrap(
 		        new NioServerSocketChannelFactory(
 		                Executors.newCachedThreadPool(),
-		                Executors.newCachedThreadPool()));
+		                Executors.newCachedThreadPool(),
+		                _serverConfig.getIoThreadsCount()));
+		
+		// Replies are already coalesced per read, do not delay them further.
+		bootstrap.setOption("child.tcpNoDelay", true);
+		if (_serverConfig.isDirectBuffers()){
+			// Read buffers are sliced from preallocated direct chunks instead of allocating a heap array per read.
+			bootstrap.setOption("child.bufferFactory", DirectChannelBufferFactory.getInstance());
+		}
+		
+		// Configure back-pressure thresholds, low must be set first to keep it below the high one.
+		bootstrap.setOption("child.writeBufferLowWaterMark", WRITE_BUFFER_LOW_WATER_MARK);
+		bootstrap.setOption("child.writeBufferHighWaterMark", WRITE_BUFFER_HIGH_WATER_MARK);
 		
-		// Configure the pipeline factory.
-		_serverPipelineFactory = new ServerPipelineFactory(_serverConfig.getFilepathToPersist());
 		bootstrap.setPipelineFactory(_serverPipelineFactory);
 		
 		// Bind and start to accept incoming connections.
@@ -101,6 +240,24 @@ public class Server {
 		    	printHelp();
 		    	continue;
 		    }
+		    else if (cmd.toLowerCase().equals("stats")){
+		    	System.out.println(_serverPipelineFactory.getServerHandler().getStats());
+		    	continue;
+		    }
+		    else if (cmd.toLowerCase().equals("slowlog")){
+		    	System.out.println(_serverPipelineFactory.getServerHandler().getSlowLog().getLatest(_serverConfig.getSlowLogMaxEntries()).replace(" | ", "\n"));
+		    	continue;
+		    }
+		    else if (cmd.toLowerCase().equals("config") || cmd.toLowerCase().startsWith("config ")){
+		    	String[] parsedCmd = cmd.trim().split("\\s+");
+		    	System.out.println(_serverPipelineFactory.getServerHandler().getRuntimeSettings().execute(
+		    			Arrays.copyOfRange(parsedCmd, 1, parsedCmd.length)));
+		    	continue;
+		    }
+		    else if (cmd.toLowerCase().equals("replinfo")){
+		    	System.out.println(_serverPipelineFactory.getServerHandler().getReplicationInfo());
+		    	continue;
+		    }
 		    else if (cmd.toLowerCase().equals("exit")){
 			    lastWriteFuture = serverChannel.write(cmd + "\r\n");
 			    // Wait until all messages are flushed before closing the channel.
@@ -122,14 +279,17 @@ public class Server {
 			System.err.println("Cause: " + e.getMessage());
 		}
 		
-		// Persist data before exiting.
+		// Stop replication and persist data before exiting.
+		_serverPipelineFactory.getServerHandler().shutdown();
 		_serverPipelineFactory.getServerHandler().getServerCache().stopThreadAndPersistData();
 		bootstrap.releaseExternalResources();
 	}
 	
 	private void printHelp() {
 		System.out.println("---Welcome to CHT server application---\n\n"
-				+ "Type 'help' for option menu and 'exit' to quit");
+				+ "Type 'stats' for server statistics, 'slowlog' for slow commands, 'replinfo' for replication state,\n"
+				+ "'config get [name]' and 'config set <name> <value>' for runtime settings,\n"
+				+ "'help' for option menu and 'exit' to quit");
 	}
 
 
@@ -148,6 +308,49 @@ public class Server {
 		
 		 Option hostOpt = new Option("h", "host", true, "host ip of the server to connect to");
 		 options.addOption(hostOpt);
+		 
+		 Option compressionOpt = new Option("z", "compression", true, "codec for the persisted data, none or deflate");
+		 options.addOption(compressionOpt);
+		 
+		 Option compressionLevelOpt = new Option("l", "compression-level", true, "deflate level, 1(fastest) to 9(smallest)");
+		 compressionLevelOpt.setType(Integer.class);
+		 options.addOption(compressionLevelOpt);
+		 
+		 Option slowLogThresholdOpt = new Option(null, "slowlog-threshold", true, "commands slower than this number of milliseconds are kept in the slow log");
+		 slowLogThresholdOpt.setType(Integer.class);
+		 options.addOption(slowLogThresholdOpt);
+		 
+		 Option slowLogMaxEntriesOpt = new Option(null, "slowlog-max-len", true, "number of slow commands to keep");
+		 slowLogMaxEntriesOpt.setType(Integer.class);
+		 options.addOption(slowLogMaxEntriesOpt);
+		 
+		 Option partitionsOpt = new Option(null, "partitions", true, "number of independent cache partitions, each served by its own thread");
+		 partitionsOpt.setType(Integer.class);
+		 options.addOption(partitionsOpt);
+		 
+		 Option ioThreadsOpt = new Option(null, "io-threads", true, "number of threads serving the connections");
+		 ioThreadsOpt.setType(Integer.class);
+		 options.addOption(ioThreadsOpt);
+		 
+		 Option buffersOpt = new Option(null, "buffers", true, "buffers to read the connections into, heap or direct(preallocated chunks)");
+		 options.addOption(buffersOpt);
+		 
+		 Option maxInFlightOpt = new Option(null, "max-inflight", true, "commands executing at once above which new commands are rejected with BUSY, 0 for no limit");
+		 maxInFlightOpt.setType(Integer.class);
+		 options.addOption(maxInFlightOpt);
+		 
+		 Option maxLockWaitOpt = new Option(null, "max-lock-wait", true, "average cache wait in milliseconds above which new commands are rejected with BUSY, 0 for no limit");
+		 maxLockWaitOpt.setType(Integer.class);
+		 options.addOption(maxLockWaitOpt);
+		 
+		 Option internValuesOpt = new Option(null, "intern-values", false, "keep a single instance of every distinct list value, for lists of repeated values");
+		 options.addOption(internValuesOpt);
+		 
+		 Option configOpt = new Option("c", "config", true, "file of runtime settings(<name>=<value> lines), command line options take precedence");
+		 options.addOption(configOpt);
+		 
+		 Option replicaOfOpt = new Option("r", "replicaof", true, "host:port of the primary server, runs this server as its read only replica");
+		 options.addOption(replicaOfOpt);
 		
 		
 		 CommandLineParser parser = new DefaultParser();
@@ -177,11 +380,108 @@ public class Server {
 		}
 		
 		// InetSocketAddress class already takes care of proper port numbers and ip formats so no need to check it twice
-		Server newServ = new Server(new ServerConfiguration(parsedArgs.getOptionValue("host", DEFAULT_HOST), port, 
-				parsedArgs.getOptionValue("file", DEFAULT_DATA_PERSISTANCE_PATH)));
+		ServerConfiguration serverConf = new ServerConfiguration(parsedArgs.getOptionValue("host", DEFAULT_HOST), port, 
+				parsedArgs.getOptionValue("file", DEFAULT_DATA_PERSISTANCE_PATH));
+		
+		if (parsedArgs.hasOption("replicaof")){
+			String primary = parsedArgs.getOptionValue("replicaof");
+			int separatorIdx = primary.lastIndexOf(':');
+			try {
+				serverConf.setPrimaryAddress(new InetSocketAddress(primary.substring(0, separatorIdx), 
+						Integer.parseInt(primary.substring(separatorIdx + 1))));
+			} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+				System.err.println("Primary address must be in host:port format.");
+				return;
+			}
+		}
+		
+		try {
+			serverConf.setPersistenceCodec(PersistenceCodec.fromName(parsedArgs.getOptionValue("compression", DEFAULT_COMPRESSION),
+					Integer.parseInt(parsedArgs.getOptionValue("compression-level", String.valueOf(PersistenceCodec.DEFAULT_LEVEL)))));
+		} catch (IllegalArgumentException e) { // Also covers NumberFormatException
+			System.err.println("Compression must be none or deflate with an integer level between 1 and 9.");
+			return;
+		}
+		
+		try {
+			serverConf.setSlowLogThresholdMillis(Long.parseLong(
+					parsedArgs.getOptionValue("slowlog-threshold", String.valueOf(DEFAULT_SLOW_LOG_THRESHOLD_MS))));
+			int slowLogMaxEntries = Integer.parseInt(
+					parsedArgs.getOptionValue("slowlog-max-len", String.valueOf(DEFAULT_SLOW_LOG_MAX_ENTRIES)));
+			if (slowLogMaxEntries <= 0){
+				throw new NumberFormatException();
+			}
+			serverConf.setSlowLogMaxEntries(slowLogMaxEntries);
+		} catch (NumberFormatException e) {
+			System.err.println("Slow log threshold and length must be positive integers.");
+			return;
+		}
+		
+		try {
+			int partitionsCount = Integer.parseInt(
+					parsedArgs.getOptionValue("partitions", String.valueOf(DEFAULT_PARTITIONS_COUNT)));
+			if (partitionsCount <= 0){
+				throw new NumberFormatException();
+			}
+			serverConf.setPartitionsCount(partitionsCount);
+		} catch (NumberFormatException e) {
+			System.err.println("Number of partitions must be a positive integer.");
+			return;
+		}
+		
+		try {
+			int ioThreadsCount = Integer.parseInt(
+					parsedArgs.getOptionValue("io-threads", String.valueOf(DEFAULT_IO_THREADS_COUNT)));
+			if (ioThreadsCount <= 0){
+				throw new NumberFormatException();
+			}
+			serverConf.setIoThreadsCount(ioThreadsCount);
+		} catch (NumberFormatException e) {
+			System.err.println("Number of I/O threads must be a positive integer.");
+			return;
+		}
+		
+		String buffers = parsedArgs.getOptionValue("buffers", DEFAULT_BUFFERS);
+		if (!buffers.equals("direct") && !buffers.equals("heap")){
+			System.err.println("Buffers must be direct or heap.");
+			return;
+		}
+		serverConf.setDirectBuffers(buffers.equals("direct"));
+		
+		try {
+			int maxInFlight = Integer.parseInt(parsedArgs.getOptionValue("max-inflight", "0"));
+			long maxLockWaitMillis = Long.parseLong(parsedArgs.getOptionValue("max-lock-wait", "0"));
+			if (maxInFlight < 0 || maxLockWaitMillis < 0){
+				throw new NumberFormatException();
+			}
+			serverConf.setMaxInFlight(maxInFlight);
+			serverConf.setMaxLockWaitMillis(maxLockWaitMillis);
+		} catch (NumberFormatException e) {
+			System.err.println("Load shedding limits must be non negative integers.");
+			return;
+		}
+		
+		serverConf.setInternValues(parsedArgs.hasOption("intern-values"));
+		
+		if (parsedArgs.hasOption("config")){
+			Properties settings = new Properties();
+			try (InputStream configIn = new FileInputStream(parsedArgs.getOptionValue("config"))) {
+				settings.load(configIn);
+			} catch (IOException e) {
+				System.err.println("Config file can not be read: " + e.getMessage());
+				return;
+			}
+			// Settings are named after their options, the options given explicitly take precedence
+			for (Option option : parsedArgs.getOptions()){
+				settings.remove(option.getLongOpt());
+			}
+			serverConf.setSettings(settings);
+		}
+		
+		Server newServ = new Server(serverConf);
 		try {
 			newServ.startServer();
-		} catch (IOException e) {
+		} catch (IOException | IllegalStateException e) { // Persisted data does not match the configuration
 			System.err.println("Server failed to start. Exiting.");
 			System.err.println("Cause: " + e.getMessage());
 		}
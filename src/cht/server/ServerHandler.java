@@ -1,7 +1,17 @@
 package cht.server;
 
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -9,30 +19,265 @@ import java.util.logging.Logger;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelLocal;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 
-import cht.cache.LRUPersistentCache;
+import cht.cache.CacheTimings;
+import cht.cache.ListCache;
+import cht.cache.PartitionedCache;
+import cht.cache.ValueDictionary;
+import cht.cache.ValuesEncoding;
 
 public class ServerHandler extends SimpleChannelUpstreamHandler {
+	
+	/**
+	 * Commands of a connection that arrived while it was blocked by a blocking pop, 
+	 * they are executed in order once the pop completes so the replies stay in the commands order.
+	 * */
+	private static class DeferredCommands {
+		private final Queue<String> _commands = new ArrayDeque<>();
+		private boolean _blocked;
+		private int _parkCount; // Incremented on every park, detects that a deferred command has blocked again
+	}
+	
 	private static final String CLIENT_TERMINATE_MSG = "Goodbye!";
+	private static final String READ_ONLY_MSG = "This server is a read only replica, send modifications to the primary.";
+	private static final String EXPIRED_MSG = "EXPIRED: deadline passed before the command was executed.";
+	private static final String BUSY_MSG = "BUSY: server is overloaded, retry later.";
+	private static final int MIN_FRAME_LENGTH = 256;
+	// Reading of a connection blocked by a blocking pop is suspended once this many of its commands are deferred
+	private static final int MAX_DEFERRED_COMMANDS = 1024;
+	// Optional prefix of a command, @<deadline in epoch millis>_<command>
+	private static final String DEADLINE_PREFIX = "@";
+	// Commands that are cheap or needed to diagnose an overload are never shed
+	private static final Set<String> NEVER_SHED_COMMANDS = new HashSet<>(Arrays.asList(
+			"exit", "sync", "replack", "replinfo", "stats", "slowlog", "tracking", "config"));
 	private static final Logger logger = Logger.getLogger(
 			ServerHandler.class.getSimpleName());
 	
-	private LRUPersistentCache _serverCache;
+	private ListCache _serverCache;
+	private ReplicationManager _replicationManager; // Streams the modifications to the replicas of this server
+	private ReplicaClient _replicaClient; // Receives the modifications from the primary, null if this server is a primary
+	private BlockingPopRegistry _blockingPops;
+	private InvalidationTracker _invalidationTracker; // Keys read by the connections with a near cache
+	private SlowLog _slowLog;
+	private LoadShedder _loadShedder;
+	private ValueDictionary _valueDictionary; // Canonical instances of the values, null if values are not interned
+	private String _ioInfo; // I/O configuration for the stats
+	private volatile int _maxFrameLength; // Longest command line, applies to the connections accepted after it changes
+	private RuntimeSettings _runtimeSettings;
+	private final ChannelLocal<DeferredCommands> _deferredCommands = new ChannelLocal<DeferredCommands>(true) {
+		@Override
+		protected DeferredCommands initialValue(Channel channel) {
+			return new DeferredCommands();
+		}
+	};
 	
-	public ServerHandler(String filePathForPersistance) {
-		_serverCache = new LRUPersistentCache(filePathForPersistance);
+	public ServerHandler(Server.ServerConfiguration serverConf) throws IOException {
+		_valueDictionary = serverConf.isInternValues() ? new ValueDictionary() : null;
+		_serverCache = PartitionedCache.open(serverConf.getPartitionsCount(), 0,
+				serverConf.getFilepathToPersist(), serverConf.getPersistenceCodec(), _valueDictionary);
+		_slowLog = new SlowLog(serverConf.getSlowLogThresholdMillis(), serverConf.getSlowLogMaxEntries());
+		_loadShedder = new LoadShedder(serverConf.getMaxInFlight(), serverConf.getMaxLockWaitMillis());
+		_maxFrameLength = serverConf.getMaxFrameLength();
+		_runtimeSettings = createRuntimeSettings();
+		try {
+			// Applied before any thread is started, so a refused config file does not leave the server half running
+			_runtimeSettings.setAll(serverConf.getSettings());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalStateException("Invalid config file. " + e.getMessage());
+		}
 		_serverCache.start();
+		_blockingPops = new BlockingPopRegistry(_serverCache);
+		_invalidationTracker = new InvalidationTracker(_serverCache);
+		_ioInfo = "io_threads:" + serverConf.getIoThreadsCount() + ",buffers:" + (serverConf.isDirectBuffers() ? "direct" : "heap");
+		_replicationManager = new ReplicationManager(_serverCache);
+		InetSocketAddress primaryAddress = serverConf.getPrimaryAddress();
+		if (primaryAddress != null){
+			_replicaClient = new ReplicaClient(primaryAddress, _serverCache);
+			_replicaClient.start();
+		}
 		logger.setLevel(Level.WARNING);
 	}
 	
-	public LRUPersistentCache getServerCache(){
+	public ListCache getServerCache(){
 		return _serverCache;
 	}
 	
+	/**
+	 * Parameters of the cache, persistence, connections and overload protection that may be changed at runtime
+	 * */
+	private RuntimeSettings createRuntimeSettings(){
+		RuntimeSettings runtimeSettings = new RuntimeSettings();
+		runtimeSettings.addSetting("max-size", 1, Integer.MAX_VALUE, 
+				_serverCache::getMaxSize, maxSize -> _serverCache.setMaxSize((int) maxSize));
+		runtimeSettings.addSetting("persist-interval", 1, Integer.MAX_VALUE, 
+				_serverCache::getPersistIntervalSec, intervalSec -> _serverCache.setPersistIntervalSec((int) intervalSec));
+		runtimeSettings.addSetting("persist-threshold", 0, Integer.MAX_VALUE, 
+				_serverCache::getPersistThreshold, threshold -> _serverCache.setPersistThreshold((int) threshold));
+		runtimeSettings.addSetting("frame-length", MIN_FRAME_LENGTH, Integer.MAX_VALUE, 
+				() -> _maxFrameLength, frameLength -> _maxFrameLength = (int) frameLength);
+		runtimeSettings.addSetting("slowlog-threshold", 0, Long.MAX_VALUE, 
+				_slowLog::getThresholdMillis, _slowLog::setThresholdMillis);
+		runtimeSettings.addSetting("max-inflight", 0, Integer.MAX_VALUE, 
+				_loadShedder::getMaxInFlight, maxInFlight -> _loadShedder.setMaxInFlight((int) maxInFlight));
+		runtimeSettings.addSetting("max-lock-wait", 0, Long.MAX_VALUE, 
+				_loadShedder::getMaxLockWaitMillis, _loadShedder::setMaxLockWaitMillis);
+		return runtimeSettings;
+	}
+	
+	public RuntimeSettings getRuntimeSettings(){
+		return _runtimeSettings;
+	}
+	
+	public int getMaxFrameLength(){
+		return _maxFrameLength;
+	}
+	
+	/**
+	 * Stop streaming modifications to the replicas and from the primary and stop timing out blocking pops
+	 * */
+	public void shutdown(){
+		_blockingPops.stop();
+		_replicationManager.stop();
+		if (_replicaClient != null){
+			_replicaClient.stop();
+		}
+	}
+	
+	/**
+	 * Replication role and state of this server
+	 * */
+	public String getReplicationInfo(){
+		return _replicaClient != null ? _replicaClient.getInfo() : _replicationManager.getInfo();
+	}
+	
+	public SlowLog getSlowLog(){
+		return _slowLog;
+	}
+	
+	/**
+	 * Server statistics
+	 * */
+	public String getStats(){
+		return "codec:" + _serverCache.getPersistenceCodec() + "," + _serverCache.getPersistenceStats().getInfo()
+			+ "," + _invalidationTracker.getInfo() + "," + _loadShedder.getInfo() + "," + _ioInfo + "," + getGcInfo()
+			+ (_valueDictionary != null ? "," + _valueDictionary.getInfo() : "");
+	}
+	
+	/**
+	 * Collections and their total time since the server started, and the current heap usage
+	 * */
+	private static String getGcInfo(){
+		long gcCount = 0;
+		long gcMillis = 0;
+		for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()){
+			gcCount += Math.max(gcBean.getCollectionCount(), 0); // -1 if undefined
+			gcMillis += Math.max(gcBean.getCollectionTime(), 0);
+		}
+		long heapUsedBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		return "gc_count:" + gcCount + ",gc_ms:" + gcMillis + ",heap_used_mb:" + heapUsedBytes / (1024 * 1024);
+	}
+	
+	/**
+	 * Set all the key/value pairs of mset_<K1>_<V1>_<K2>_<V2>... with a single cache lock acquisition,
+	 * the values of every key are encoded with ValuesEncoding as in the export lines
+	 * */
+	private String bulkSet(String command){
+		// Keep the empty fields, they are lists of a single empty value
+		String[] parsedCommand = command.split("_", -1);
+		if (parsedCommand.length < 3 || parsedCommand.length % 2 == 0){
+			return "Unknown command: " + command;
+		}
+		
+		Map<String, List<String>> entries = new LinkedHashMap<>();
+		for (int i = 1; i < parsedCommand.length; i += 2){
+			entries.put(parsedCommand[i], ValuesEncoding.decode(parsedCommand[i + 1]));
+		}
+		_serverCache.setAll(entries);
+		for (String key : entries.keySet()){
+			_blockingPops.signal(key);
+		}
+		return "Bulk set of " + entries.size() + " keys was done successfully.";
+	}
+	
+	/**
+	 * Stream a sorted snapshot of all the data as <K>_<[V]> lines, followed by exportend <number of keys>
+	 * */
+	private void exportData(Channel currChannel){
+		_serverCache.snapshot(snapshot -> {
+			for (Map.Entry<String, LinkedList<String>> entry : snapshot.entrySet()){
+				currChannel.write(entry.getKey() + "_" + ValuesEncoding.encode(entry.getValue()) + "\n");
+			}
+			currChannel.write("exportend " + snapshot.size() + "\n");
+		});
+	}
+	
+	/**
+	 * Pop a value or block the connection until a value is pushed or the timeout passes.
+	 * Returns null if the connection was blocked, the reply is written once the pop completes.
+	 * */
+	private String blockingPop(String key, boolean rightPop, String timeoutSec, Channel currChannel){
+		long timeoutMillis;
+		try {
+			timeoutMillis = (long) (Double.parseDouble(timeoutSec) * 1000);
+		} catch (NumberFormatException e) {
+			return "Timeout must be a number of seconds: " + timeoutSec;
+		}
+		
+		DeferredCommands deferredCommands = _deferredCommands.get(currChannel);
+		return _blockingPops.popOrPark(key, rightPop, timeoutMillis, currChannel, 
+			() -> {
+				// New commands are deferred, reading goes on so a disconnect of the client is noticed while it waits
+				synchronized (deferredCommands) {
+					deferredCommands._blocked = true;
+					deferredCommands._parkCount++;
+				}
+			}, 
+			value -> {
+				// Woken by the timer or by the I/O thread of the pushing connection, the deferred commands of this
+				// connection run on its own I/O thread like the rest of its commands
+				currChannel.getPipeline().execute(() -> {
+					currChannel.write((value != null ? value : "Timeout waiting for values of key: " + key) + '\n');
+					resumeChannel(currChannel, deferredCommands);
+				});
+			});
+	}
+	
+	/**
+	 * Execute the commands deferred while the connection was blocked and resume reading, runs on the I/O thread of the connection
+	 * */
+	private void resumeChannel(Channel currChannel, DeferredCommands deferredCommands){
+		for (;;) {
+			String command;
+			int parkCount;
+			synchronized (deferredCommands) {
+				command = deferredCommands._commands.poll();
+				if (command == null){
+					deferredCommands._blocked = false;
+					break;
+				}
+				parkCount = deferredCommands._parkCount;
+			}
+			
+			executeCommand(command, currChannel);
+			synchronized (deferredCommands) {
+				if (deferredCommands._parkCount != parkCount){
+					// Blocked again, whoever completes this pop continues from here
+					return;
+				}
+			}
+		}
+		
+		// If the client is slow to read the replies, reading resumes once they are written
+		if (currChannel.isWritable()){
+			currChannel.setReadable(true);
+		}
+	}
+	
 	private String parseAndExecuteCommand(String command, Channel currChannel){
 		
 		String[] parsedCommand = command.split("_");
@@ -42,32 +287,154 @@ public class ServerHandler extends SimpleChannelUpstreamHandler {
 	    	currChannel.close();
 	    	return CLIENT_TERMINATE_MSG;
 	    }
+	    else if (command.equals("sync")){ // A replica asks for the snapshot and the modifications stream
+	    	_replicationManager.addReplica(currChannel);
+	    	return null;
+	    }
+	    else if (parsedCommand[0].equals("replack") && parsedCommand.length == 2){ // A replica reports its offset
+	    	_replicationManager.acknowledge(currChannel, Long.parseLong(parsedCommand[1]));
+	    	return null;
+	    }
+	    else if (command.equals("replinfo")){
+	    	return getReplicationInfo();
+	    }
+	    else if (command.equals("stats")){
+	    	return getStats();
+	    }
+	    else if (command.equals("tracking_on")){ // Client keeps a near cache, push it invalidations of the keys it reads
+	    	_invalidationTracker.enableTracking(currChannel);
+	    	return "Tracking is on.";
+	    }
+	    else if (command.equals("tracking_off")){
+	    	_invalidationTracker.disableTracking(currChannel);
+	    	return "Tracking is off.";
+	    }
+	    else if (parsedCommand[0].equals("config")){ // config_get, config_get_<name> or config_set_<name>_<value>
+	    	return _runtimeSettings.execute(Arrays.copyOfRange(parsedCommand, 1, parsedCommand.length));
+	    }
+	    else if (parsedCommand[0].equals("mset")){
+	    	return _replicaClient != null ? READ_ONLY_MSG : bulkSet(command);
+	    }
+	    else if (command.equals("export")){
+	    	exportData(currChannel);
+	    	return null;
+	    }
+	    else if (parsedCommand[0].equals("slowlog") && parsedCommand.length == 2){
+	    	try {
+	    		return _slowLog.getLatest(Integer.parseInt(parsedCommand[1]));
+	    	} catch (NumberFormatException e) {
+	    		return "Number of slow log entries must be an integer: " + parsedCommand[1];
+	    	}
+	    }
 	    else if (parsedCommand.length == 2){
-	    	if (parsedCommand[0].equals("getallkeys")){ // It's a getallkeys command
+	    	if ((parsedCommand[0].equals("lpop") || parsedCommand[0].equals("rpop")) && _replicaClient != null){
+	    		return READ_ONLY_MSG;
+	    	}
+	    	else if (parsedCommand[0].equals("lpop")){ // It's a lpop command
+	    		String value = _serverCache.leftPop(parsedCommand[1]);
+	    		return value == null ? "Following key has no values: " + parsedCommand[1] : value;
+	    	}
+	    	else if (parsedCommand[0].equals("rpop")){ // It's a rpop command
+	    		String value = _serverCache.rightPop(parsedCommand[1]);
+	    		return value == null ? "Following key has no values: " + parsedCommand[1] : value;
+	    	}
+	    	else if (parsedCommand[0].equals("getallkeys")){ // It's a getallkeys command
 	    		Set<String> allKeys = _serverCache.getAllKeys(parsedCommand[1]);
 	    		return allKeys.isEmpty() ? "No keys are avaliable for pattern: " + parsedCommand[1] : String.join(",", allKeys);
-	    		
+
+	    	}
+	    	else if (parsedCommand[0].equals("countkeys")){ // It's a countkeys command
+	    		return String.valueOf(_serverCache.countKeys(parsedCommand[1]));
 	    	} else { // It's a get command
+	    		if (_invalidationTracker.isTracking(currChannel)){
+	    			_invalidationTracker.track(parsedCommand[1], currChannel);
+	    		}
 	    		List<String> keyValue = _serverCache.get(parsedCommand[1]);
 	    		return keyValue == null ? "Following key does not exist: " + parsedCommand[1] : String.join(",", keyValue); 
 	    	}
 	    }
-	    else{ // Parsed command has 3 parts.
-	    	if (parsedCommand[0].equals("rightadd")){ // It's a rightadd command
+	    else if (parsedCommand.length == 3){
+	    	if (_replicaClient != null){ // Replicas serve reads only, modifications arrive from the primary
+	    		return READ_ONLY_MSG;
+	    	}
+	    	else if (parsedCommand[0].equals("blpop")){ // It's a blpop command
+	    		return blockingPop(parsedCommand[1], false, parsedCommand[2], currChannel);
+	    	}
+	    	else if (parsedCommand[0].equals("brpop")){ // It's a brpop command
+	    		return blockingPop(parsedCommand[1], true, parsedCommand[2], currChannel);
+	    	}
+	    	else if (parsedCommand[0].equals("rightadd")){ // It's a rightadd command
 	    		_serverCache.rightAdd(parsedCommand[1], parsedCommand[2]);
+	    		_blockingPops.signal(parsedCommand[1]);
 	    		return "Right add of val " + parsedCommand[2] + " to key " + parsedCommand[1] + " was done successfully.";
 	    	} 
 	    	else if (parsedCommand[0].equals("leftadd")) { // It's a leftadd command
 	    		_serverCache.leftAdd(parsedCommand[1], parsedCommand[2]);
+	    		_blockingPops.signal(parsedCommand[1]);
 	    		return "Left add of val " + parsedCommand[2] + " to key " + parsedCommand[1] + " was done successfully.";
 	    	} 
 	    	else { // It's a set command
 	    		String key = parsedCommand[1];
 	    		List<String> valuesList = Arrays.asList(parsedCommand[2].split(","));
 	    		_serverCache.set(key, valuesList);
+	    		_blockingPops.signal(key);
 	    		return "List of values [" + parsedCommand[2] + "] was associated with key " + parsedCommand[1] + " successfully.";
 	    	}
 	    }
+	    return "Unknown command: " + command;
+	}
+	
+	
+	private void executeCommand(String command, Channel currChannel){
+		if (command.startsWith(DEADLINE_PREFIX)){
+			int separatorIdx = command.indexOf('_');
+			long deadline;
+			try {
+				deadline = Long.parseLong(command.substring(DEADLINE_PREFIX.length(), separatorIdx));
+			} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+				currChannel.write("Unknown command: " + command + '\n');
+				return;
+			}
+			if (System.currentTimeMillis() > deadline){
+				// The client has given up on it already, do not spend any time on it
+				_loadShedder.recordExpired();
+				currChannel.write(EXPIRED_MSG + '\n');
+				return;
+			}
+			command = command.substring(separatorIdx + 1);
+		}
+		
+		int nameEnd = command.indexOf('_');
+		boolean sheddable = !NEVER_SHED_COMMANDS.contains(nameEnd >= 0 ? command.substring(0, nameEnd) : command);
+		if (sheddable && !_loadShedder.tryAdmit()){
+			currChannel.write(BUSY_MSG + '\n');
+			return;
+		}
+		
+		CommandEvent commandEvent = new CommandEvent();
+		commandEvent.begin();
+		CacheTimings.reset();
+		long start = System.nanoTime();
+		
+	    // Get command output.
+	    String commandOutput;
+	    try {
+	    	commandOutput = parseAndExecuteCommand(command, currChannel);
+	    } finally {
+	    	if (sheddable){
+	    		_loadShedder.complete(CacheTimings.getNanos(CacheTimings.Phase.LOCK_WAIT));
+	    	}
+	    }
+	    long executed = System.nanoTime();
+	    if (commandOutput != null){
+	    	currChannel.write(commandOutput + '\n');
+	    }
+	    
+	    _slowLog.record(command, executed - start, System.nanoTime() - executed);
+	    if (commandEvent.shouldCommit()){
+	    	commandEvent.command = command;
+	    	commandEvent.commit();
+	    }
 	}
 	
 	
@@ -76,12 +443,21 @@ public class ServerHandler extends SimpleChannelUpstreamHandler {
 	    // Convert to a String first.
 	    String command = (String) e.getMessage();
 	    Channel currChannel = e.getChannel();
+	    
+	    // Connection is blocked by a blocking pop, the command runs once the pop completes
+	    DeferredCommands deferredCommands = _deferredCommands.get(currChannel);
+	    synchronized (deferredCommands) {
+			if (deferredCommands._blocked){
+				deferredCommands._commands.add(command);
+				if (deferredCommands._commands.size() >= MAX_DEFERRED_COMMANDS){
+					// Do not buffer an unbounded pipeline, the rest waits in the socket
+					currChannel.setReadable(false);
+				}
+				return;
+			}
+		}
    
-	    // Get command output.
-	    String commandOutput = parseAndExecuteCommand(command, currChannel);
-	    if (commandOutput != null){
-	    	currChannel.write(commandOutput + '\n');
-	    }
+	    executeCommand(command, currChannel);
 	}
 	
 	
@@ -95,6 +471,32 @@ public class ServerHandler extends SimpleChannelUpstreamHandler {
     }
 	
 	
+	@Override
+	public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		// Outbound buffer dropped below the low watermark, resume reading unless too many commands wait for a blocking pop
+		Channel currChannel = e.getChannel();
+		if (currChannel.isWritable() && !currChannel.isReadable()){
+			DeferredCommands deferredCommands = _deferredCommands.get(currChannel);
+			synchronized (deferredCommands) {
+				if (deferredCommands._commands.size() < MAX_DEFERRED_COMMANDS){
+					currChannel.setReadable(true);
+				}
+			}
+		}
+		super.channelInterestChanged(ctx, e);
+	}
+	
+	
+	@Override
+	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		// Stop streaming to the replica if it was one
+		_replicationManager.removeReplica(e.getChannel());
+		_invalidationTracker.disableTracking(e.getChannel());
+		_blockingPops.removeChannel(e.getChannel());
+		super.channelClosed(ctx, e);
+	}
+	
+	
 	@Override
 	public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
 	   logger.log(
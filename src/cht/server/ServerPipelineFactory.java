@@ -1,5 +1,7 @@
 package cht.server;
 
+import java.io.IOException;
+
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
@@ -12,17 +14,20 @@ public class ServerPipelineFactory implements ChannelPipelineFactory{
 	
 	private ServerHandler _serverHandler;
 	
-	public ServerPipelineFactory(String filePathForPersistance){
-		_serverHandler = new ServerHandler(filePathForPersistance);
+	public ServerPipelineFactory(Server.ServerConfiguration serverConf) throws IOException {
+		_serverHandler = new ServerHandler(serverConf);
 	}
 	
 	@Override
 	public ChannelPipeline getPipeline() throws Exception {
 		ChannelPipeline pipeline =  pipeline();
 
-		// Add the text line codec.
+		// Batch the replies of every read and apply back-pressure.
+		pipeline.addLast("coalescer", new WriteCoalescingHandler());
+		
+		// Add the text line codec, a change of the frame length applies to the new connections.
 		pipeline.addLast("framer", new DelimiterBasedFrameDecoder(
-		        8192, Delimiters.lineDelimiter()));
+		        _serverHandler.getMaxFrameLength(), Delimiters.lineDelimiter()));
 		pipeline.addLast("decoder", new StringDecoder());
 		pipeline.addLast("encoder", new StringEncoder());
 		
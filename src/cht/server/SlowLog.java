@@ -0,0 +1,98 @@
+package cht.server;
+
+import java.util.concurrent.TimeUnit;
+
+import cht.cache.CacheTimings;
+
+/**
+ * Keeps the last commands that took longer than the threshold, with the time spent in every phase.
+ * Recording a fast command costs a single comparison, so the log may stay enabled in production.
+ * */
+public class SlowLog {
+	
+	private static class Entry {
+		private long _id;
+		private long _timestamp;
+		private String _command;
+		private long _totalNanos;
+		private long _executeNanos; // Parsing and execution, including all the cache phases
+		private long _writeNanos; // Writing the reply to the channel
+		private long[] _cacheNanos; // Indexed by CacheTimings.Phase
+		
+		@Override
+		public String toString() {
+			StringBuilder entry = new StringBuilder()
+				.append("id:").append(_id)
+				.append(",time:").append(_timestamp)
+				.append(",command:").append(_command)
+				.append(",total_us:").append(TimeUnit.NANOSECONDS.toMicros(_totalNanos))
+				.append(",execute_us:").append(TimeUnit.NANOSECONDS.toMicros(_executeNanos))
+				.append(",write_us:").append(TimeUnit.NANOSECONDS.toMicros(_writeNanos));
+			for (CacheTimings.Phase phase : CacheTimings.Phase.values()){
+				entry.append(",").append(phase.name().toLowerCase()).append("_us:")
+					.append(TimeUnit.NANOSECONDS.toMicros(_cacheNanos[phase.ordinal()]));
+			}
+			return entry.toString();
+		}
+	}
+	
+	private static final int MAX_COMMAND_LENGTH = 128; // Long set commands are truncated
+	
+	private final Entry[] _entries; // Ring buffer of the last slow commands
+	private long _nextId; // Guarded by this
+	private volatile long _thresholdNanos;
+	
+	public SlowLog(long thresholdMillis, int maxEntries){
+		_entries = new Entry[maxEntries];
+		_thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+	}
+	
+	public long getThresholdMillis(){
+		return TimeUnit.NANOSECONDS.toMillis(_thresholdNanos);
+	}
+	
+	public void setThresholdMillis(long thresholdMillis){
+		_thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+	}
+	
+	/**
+	 * Record the command if it was slow, the cache phases are taken from the current thread timings
+	 * */
+	public void record(String command, long executeNanos, long writeNanos){
+		long totalNanos = executeNanos + writeNanos;
+		if (totalNanos < _thresholdNanos){
+			return;
+		}
+		
+		Entry entry = new Entry();
+		entry._timestamp = System.currentTimeMillis();
+		entry._command = command.length() > MAX_COMMAND_LENGTH ? command.substring(0, MAX_COMMAND_LENGTH) + "..." : command;
+		entry._totalNanos = totalNanos;
+		entry._executeNanos = executeNanos;
+		entry._writeNanos = writeNanos;
+		entry._cacheNanos = new long[CacheTimings.Phase.values().length];
+		for (CacheTimings.Phase phase : CacheTimings.Phase.values()){
+			entry._cacheNanos[phase.ordinal()] = CacheTimings.getNanos(phase);
+		}
+		
+		synchronized (this) {
+			entry._id = _nextId++;
+			_entries[(int) (entry._id % _entries.length)] = entry;
+		}
+	}
+	
+	/**
+	 * Last count slow commands, newest first, separated by " | "
+	 * */
+	public synchronized String getLatest(int count){
+		StringBuilder latest = new StringBuilder();
+		long oldestId = Math.max(0, _nextId - Math.min(count, _entries.length));
+		for (long id = _nextId - 1; id >= oldestId; id--){
+			if (latest.length() > 0){
+				latest.append(" | ");
+			}
+			latest.append(_entries[(int) (id % _entries.length)]);
+		}
+		return latest.length() == 0 ? "Slow log is empty." : latest.toString();
+	}
+}
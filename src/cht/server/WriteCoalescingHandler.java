@@ -0,0 +1,50 @@
+package cht.server;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.queue.BufferedWriteHandler;
+
+/**
+ * Coalesces the replies written while a single read from the socket is processed into one write,
+ * so a pipelining client gets one syscall per read instead of one per command.
+ * Also applies back-pressure, reading from the connection is suspended once its outbound buffer passes 
+ * the high watermark and resumed(by ServerHandler) when it drops below the low watermark.
+ * Must be first in the pipeline so it sees the raw socket reads and the encoded writes.
+ * */
+public class WriteCoalescingHandler extends BufferedWriteHandler {
+	
+	// Set by the I/O thread while the read is processed by the rest of the pipeline
+	private volatile boolean _inReadCycle;
+	
+	public WriteCoalescingHandler(){
+		super(true); // Merge the buffered replies into a single buffer on flush
+	}
+	
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		_inReadCycle = true;
+		try {
+			// Decoding and executing all the commands of this read happens inside this call
+			ctx.sendUpstream(e);
+		} finally {
+			_inReadCycle = false;
+			flush();
+		}
+		
+		Channel channel = e.getChannel();
+		if (!channel.isWritable()){
+			// Client does not read its replies fast enough, stop reading its commands
+			channel.setReadable(false);
+		}
+	}
+	
+	@Override
+	public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		super.writeRequested(ctx, e);
+		// Writes from other threads(blocking pops, replication) have no read cycle to be flushed with
+		if (!_inReadCycle){
+			flush();
+		}
+	}
+}
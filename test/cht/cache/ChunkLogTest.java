@@ -0,0 +1,178 @@
+package cht.cache;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import cht.cache.ChunkLog.Chunk;
+import cht.cache.ChunkLog.ChunkType;
+
+/**
+ * Tests of the chunk log appends and recovery, run with java cht.cache.ChunkLogTest. Throws AssertionError on a failure.
+ * */
+public class ChunkLogTest {
+
+	public static void main(String[] args) throws Exception {
+		failedAppendIsTruncated();
+		tornTailIsDropped();
+		badRecordBeforeGoodOneIsCorruption();
+		legacyLogIsReplayed();
+		System.out.println("ChunkLogTest passed");
+	}
+
+	/**
+	 * A failed append leaves no torn record behind, the next append and recovery see a valid log
+	 * */
+	static void failedAppendIsTruncated() throws IOException {
+		File dir = Files.createTempDirectory("chunklog").toFile();
+		ChunkLog log = new ChunkLog(new File(dir, "data.chunks").getPath(), true);
+		log.append(Arrays.asList(new Chunk("a", ChunkType.REPLACE, Arrays.asList("1"))));
+		long lengthBeforeFailure = log.length();
+
+		// First chunk is bigger than the write buffer, so a part of the append reaches the file before it fails
+		List<String> bigValues = Collections.nCopies(2000, "0123456789");
+		try {
+			log.append(Arrays.asList(new Chunk("b", ChunkType.REPLACE, bigValues), new Chunk("c", ChunkType.APPEND, failingValues())));
+			throw new AssertionError("Append did not fail");
+		} catch (IllegalStateException expected) {
+		}
+		check(log.length() == lengthBeforeFailure, "log is truncated to " + lengthBeforeFailure + " bytes, was " + log.length());
+
+		log.append(Arrays.asList(new Chunk("a", ChunkType.APPEND, Arrays.asList("2"))));
+		check(log.recover() == 0, "nothing is dropped on recovery");
+		Map<String, LinkedList<String>> data = new HashMap<>();
+		log.replayAll(data);
+		check(data.equals(Collections.singletonMap("a", new LinkedList<>(Arrays.asList("1", "2")))), "replayed " + data);
+	}
+
+	/**
+	 * A record torn by a crash in the middle of an append is dropped, the records before it are kept
+	 * */
+	static void tornTailIsDropped() throws IOException {
+		File dir = Files.createTempDirectory("chunklog").toFile();
+		ChunkLog log = new ChunkLog(new File(dir, "data.chunks").getPath(), true);
+		log.append(Arrays.asList(new Chunk("a", ChunkType.REPLACE, Arrays.asList("1")), new Chunk("a", ChunkType.APPEND, Arrays.asList("2"))));
+		long completeLength = log.length();
+
+		// Only the first half of the next record reached the disk
+		ChunkLog fullLog = new ChunkLog(new File(dir, "full.chunks").getPath(), true);
+		fullLog.append(Arrays.asList(new Chunk("b", ChunkType.REPLACE, Arrays.asList("torn"))));
+		byte[] record = Files.readAllBytes(new File(dir, "full.chunks").toPath());
+		try (FileOutputStream out = new FileOutputStream(new File(dir, "data.chunks"), true)) {
+			out.write(record, 0, record.length / 2);
+		}
+
+		long droppedBytes = log.recover();
+		check(droppedBytes == record.length / 2, "torn record of " + record.length / 2 + " bytes is dropped, dropped " + droppedBytes);
+		check(log.length() == completeLength, "log is truncated to " + completeLength + " bytes, was " + log.length());
+		Map<String, LinkedList<String>> data = new HashMap<>();
+		log.replayAll(data);
+		check(data.equals(Collections.singletonMap("a", new LinkedList<>(Arrays.asList("1", "2")))), "replayed " + data);
+	}
+
+	/**
+	 * A bad record followed by a complete one was not torn by a crash, recovery refuses the log instead of dropping both
+	 * */
+	static void badRecordBeforeGoodOneIsCorruption() throws IOException {
+		File dir = Files.createTempDirectory("chunklog").toFile();
+		File logFile = new File(dir, "data.chunks");
+		ChunkLog log = new ChunkLog(logFile.getPath(), true);
+		log.append(Arrays.asList(new Chunk("a", ChunkType.REPLACE, Arrays.asList("1"))));
+		long badRecordOffset = log.length();
+		log.append(Arrays.asList(new Chunk("a", ChunkType.APPEND, Arrays.asList("2"))));
+		log.append(Arrays.asList(new Chunk("a", ChunkType.APPEND, Arrays.asList("3"))));
+		long logLength = log.length();
+
+		// Flip the last byte of the second record's value
+		long corruptedOffset = (badRecordOffset + logLength) / 2 - 1;
+		try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+			file.seek(corruptedOffset);
+			int value = file.read();
+			file.seek(corruptedOffset);
+			file.write(value ^ 0xFF);
+		}
+
+		try {
+			log.recover();
+			throw new AssertionError("Corrupted log was recovered");
+		} catch (IOException expected) {
+			check(expected.getMessage().contains("corrupted at offset " + badRecordOffset), "unexpected failure: " + expected.getMessage());
+		}
+		check(log.length() == logLength, "corrupted log is left as it is");
+	}
+
+	/**
+	 * Logs written before records were framed hold the bare chunks, they are replayed whole and by key
+	 * */
+	static void legacyLogIsReplayed() throws IOException {
+		File dir = Files.createTempDirectory("chunklog").toFile();
+		File logFile = new File(dir, "data.chunks");
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(logFile))) {
+			writeLegacyChunk(out, ChunkType.REPLACE, "a", "1", "2");
+			writeLegacyChunk(out, ChunkType.REPLACE, "b", "x");
+			writeLegacyChunk(out, ChunkType.APPEND, "a", "3");
+			writeLegacyChunk(out, ChunkType.PREPEND, "a", "0");
+		}
+		ChunkLog log = new ChunkLog(logFile.getPath(), false);
+
+		Map<String, LinkedList<String>> data = new HashMap<>();
+		data.put("b", new LinkedList<>(Arrays.asList("old")));
+		log.replayAll(data);
+		check(data.get("a").equals(Arrays.asList("0", "1", "2", "3")), "replayed a " + data.get("a"));
+		check(data.get("b").equals(Arrays.asList("x")), "replayed b " + data.get("b"));
+		LinkedList<String> replayedKey = log.replayKey("a", null);
+		check(Arrays.asList("0", "1", "2", "3").equals(replayedKey), "replayed key a " + replayedKey);
+	}
+
+	/**
+	 * Chunk in the format used before records were framed: type, key, number of values and values
+	 * */
+	static void writeLegacyChunk(DataOutputStream out, ChunkType type, String key, String... values) throws IOException {
+		out.writeByte(type.ordinal());
+		writeString(out, key);
+		out.writeInt(values.length);
+		for (String value : values){
+			writeString(out, value);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Values that fail while they are written, like a disk that fails in the middle of an append
+	 * */
+	private static List<String> failingValues(){
+		return new AbstractList<String>() {
+			@Override
+			public String get(int index){
+				throw new IllegalStateException("Write failed");
+			}
+
+			@Override
+			public int size(){
+				return 1;
+			}
+		};
+	}
+
+	static void check(boolean condition, String message){
+		if (!condition){
+			throw new AssertionError(message);
+		}
+	}
+}
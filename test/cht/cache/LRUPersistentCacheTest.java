@@ -0,0 +1,138 @@
+package cht.cache;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import cht.cache.ChunkLog.ChunkType;
+
+/**
+ * Tests of the cache persistence, run with java cht.cache.LRUPersistentCacheTest. Throws AssertionError on a failure.
+ * */
+public class LRUPersistentCacheTest {
+
+	public static void main(String[] args) throws Exception {
+		failedChunkAppendIsRetried();
+		tornChunkIsDroppedOnStartup();
+		appendAfterFlushIsNotDuplicated();
+		legacyDataIsRewrittenInSegments();
+		System.out.println("LRUPersistentCacheTest passed");
+	}
+
+	/**
+	 * Evicted entries that failed to persist stay in memory and are persisted by the next cycle
+	 * */
+	static void failedChunkAppendIsRetried() throws IOException, InterruptedException {
+		String path = new File(Files.createTempDirectory("cache").toFile(), "data.ser").getPath();
+		LRUPersistentCache cache = new LRUPersistentCache(2, path);
+		cache.setPersistIntervalSec(1);
+		cache.setPersistThreshold(0);
+		// A directory in place of the chunk log fails every append
+		File chunkLog = new File(openStore(path).getChunkLogPath());
+		check(chunkLog.mkdir(), "chunk log is blocked");
+
+		cache.start();
+		for (int i = 0; i < 10; i++){
+			cache.set("key" + i, Arrays.asList("value" + i));
+		}
+		Thread.sleep(2500); // A failed cycle or two
+
+		check(chunkLog.delete(), "chunk log is unblocked");
+		Thread.sleep(2500);
+		cache.stopAfterNextCycle();
+
+		// Evicted entries are on disk, the two cached ones were never persisted
+		LRUPersistentCache reloaded = new LRUPersistentCache(20, path);
+		for (int i = 0; i < 8; i++){
+			List<String> value = reloaded.get("key" + i);
+			check(Arrays.asList("value" + i).equals(value), "key" + i + " is persisted, got " + value);
+		}
+	}
+
+	/**
+	 * A chunk torn by a crash is dropped on startup and the chunks before it are loaded
+	 * */
+	static void tornChunkIsDroppedOnStartup() throws IOException {
+		String path = new File(Files.createTempDirectory("cache").toFile(), "data.ser").getPath();
+		LRUPersistentCache cache = new LRUPersistentCache(1, path);
+		cache.setPersistThreshold(0);
+		cache.set("a", Arrays.asList("1"));
+		cache.set("b", Arrays.asList("2")); // Evicts a
+		cache.persistEvictedEntries();
+
+		File chunkLog = new File(openStore(path).getChunkLogPath());
+		long chunkLogLength = chunkLog.length();
+		check(chunkLogLength > 0, "a is persisted as a chunk");
+		try (FileOutputStream out = new FileOutputStream(chunkLog, true)) {
+			out.write(new byte[] {0, 0, 0, 50, 1, 2}); // Header of a record that was never written
+		}
+
+		LRUPersistentCache reloaded = new LRUPersistentCache(10, path);
+		check(chunkLog.length() == chunkLogLength, "torn chunk is dropped, log has " + chunkLog.length() + " bytes");
+		check(Arrays.asList("1").equals(reloaded.get("a")), "a is loaded, got " + reloaded.get("a"));
+	}
+
+	/**
+	 * Lists persisted in whole by flush are in sync with disk, their appends from before the flush are not persisted again
+	 * */
+	static void appendAfterFlushIsNotDuplicated() throws IOException {
+		String path = new File(Files.createTempDirectory("cache").toFile(), "data.ser").getPath();
+		LRUPersistentCache writer = new LRUPersistentCache(1, path);
+		writer.set("a", Arrays.asList("1"));
+		writer.flush();
+
+		// Loaded in sync with disk, the append is pending until flush persists the whole list
+		LRUPersistentCache cache = new LRUPersistentCache(1, path);
+		cache.setPersistThreshold(0);
+		cache.rightAdd("a", "2");
+		cache.flush();
+		cache.set("b", Arrays.asList("3")); // Evicts a, nothing is left to append
+		cache.persistEvictedEntries();
+
+		LRUPersistentCache reloaded = new LRUPersistentCache(10, path);
+		check(Arrays.asList("1", "2").equals(reloaded.get("a")), "2 is persisted once, got " + reloaded.get("a"));
+	}
+
+	/**
+	 * Data file and unframed chunk log written before segments existed are loaded together and rewritten in segments
+	 * */
+	static void legacyDataIsRewrittenInSegments() throws IOException {
+		String path = new File(Files.createTempDirectory("cache").toFile(), "data.ser").getPath();
+		HashMap<String, LinkedList<String>> data = new HashMap<>();
+		data.put("a", new LinkedList<>(Arrays.asList("1")));
+		data.put("b", new LinkedList<>(Arrays.asList("2")));
+		try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(path))) {
+			out.writeObject(data);
+		}
+		File legacyChunkLog = new File(SegmentStore.legacyChunkLogPath(path));
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(legacyChunkLog))) {
+			ChunkLogTest.writeLegacyChunk(out, ChunkType.APPEND, "a", "3");
+			ChunkLogTest.writeLegacyChunk(out, ChunkType.REPLACE, "c", "4");
+		}
+
+		LRUPersistentCache cache = new LRUPersistentCache(10, path);
+		check(Arrays.asList("1", "3").equals(cache.get("a")), "chunk is stitched to a, got " + cache.get("a"));
+		check(Arrays.asList("2").equals(cache.get("b")), "b is loaded, got " + cache.get("b"));
+		check(Arrays.asList("4").equals(cache.get("c")), "c is loaded from the chunk log, got " + cache.get("c"));
+		check(!legacyChunkLog.exists(), "legacy chunk log is folded into the segments");
+		check(!openStore(path).isLegacy(), "legacy data is rewritten in segments");
+		check(Arrays.asList("1", "3").equals(new LRUPersistentCache(10, path).get("a")), "rewritten data is loaded");
+	}
+
+	private static SegmentStore openStore(String path) throws IOException {
+		return new SegmentStore(path, new PersistenceCodec(PersistenceCodec.Type.NONE), new PersistenceStats());
+	}
+
+	static void check(boolean condition, String message){
+		if (!condition){
+			throw new AssertionError(message);
+		}
+	}
+}
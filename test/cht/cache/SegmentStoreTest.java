@@ -0,0 +1,168 @@
+package cht.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Tests of the segmented persisted data and its recovery, run with java cht.cache.SegmentStoreTest. Throws AssertionError on a failure.
+ * */
+public class SegmentStoreTest {
+
+	public static void main(String[] args) throws Exception {
+		emptyStoreLoadsNothing();
+		keysAreLoadedFromTheirSegments();
+		interruptedPersistIsRolledBack();
+		corruptedSegmentIsRefused();
+		corruptedManifestIsRefused();
+		legacyFileIsLoaded();
+		System.out.println("SegmentStoreTest passed");
+	}
+
+	/**
+	 * Nothing persisted yet, generation 0 without segments
+	 * */
+	static void emptyStoreLoadsNothing() throws IOException {
+		String path = newDataPath();
+		SegmentStore store = openStore(path);
+		check(!store.isLegacy(), "empty store is not legacy");
+		check(store.loadAll().isEmpty(), "empty store loads nothing");
+		check(store.loadKey("a") == null, "empty store has no keys");
+		check(store.getChunkLogPath().equals(path + ".0.chunks"), "chunk log of generation 0, got " + store.getChunkLogPath());
+	}
+
+	/**
+	 * Data spread over several segments is loaded whole and key by key, also after reopening
+	 * */
+	static void keysAreLoadedFromTheirSegments() throws IOException {
+		String path = newDataPath();
+		Map<String, LinkedList<String>> data = newData(25000); // More than one segment
+		openStore(path).write(data);
+
+		SegmentStore store = openStore(path);
+		check(new File(path + ".1.seg2").isFile(), "data is written in 3 segments");
+		check(store.loadAll().equals(data), "all the segments are loaded");
+		for (String key : Arrays.asList("key0", "key9999", "key12345", "key24999")){
+			check(data.get(key).equals(store.loadKey(key)), key + " is loaded from its segment, got " + store.loadKey(key));
+		}
+		check(store.loadKey("missing") == null, "missing key is not loaded");
+	}
+
+	/**
+	 * A persist that crashed before its manifest was committed leaves the previous generation current,
+	 * the files of the new generation and the temp files are removed on startup
+	 * */
+	static void interruptedPersistIsRolledBack() throws IOException {
+		String path = newDataPath();
+		Map<String, LinkedList<String>> data = newData(10);
+		openStore(path).write(data);
+
+		// Leftovers of writing generation 2
+		File[] leftovers = {new File(path + ".2.seg0"), new File(path + ".2.seg1.tmp"), new File(path + ".2.chunks"), new File(path + ".tmp")};
+		for (File leftover : leftovers){
+			Files.write(leftover.toPath(), new byte[] {1, 2, 3});
+		}
+
+		SegmentStore store = openStore(path);
+		for (File leftover : leftovers){
+			check(!leftover.exists(), leftover + " is removed");
+		}
+		check(store.getChunkLogPath().equals(path + ".1.chunks"), "generation 1 is current, got " + store.getChunkLogPath());
+		check(store.loadAll().equals(data), "generation 1 is loaded");
+
+		// The next persist goes on from the current generation
+		Map<String, LinkedList<String>> newData = newData(20);
+		store.write(newData);
+		check(!new File(path + ".1.seg0").exists(), "previous generation is removed once the new one is committed");
+		check(openStore(path).loadAll().equals(newData), "generation 2 is loaded");
+	}
+
+	/**
+	 * A segment that does not match the checksum of the manifest is refused instead of loading partial data
+	 * */
+	static void corruptedSegmentIsRefused() throws IOException {
+		String path = newDataPath();
+		openStore(path).write(newData(10));
+		flipByte(new File(path + ".1.seg0"), 100);
+
+		try {
+			openStore(path).loadAll();
+			throw new AssertionError("Corrupted segment was loaded");
+		} catch (IOException expected) {
+			check(expected.getMessage().contains("checksum does not match"), "unexpected failure: " + expected.getMessage());
+		}
+	}
+
+	static void corruptedManifestIsRefused() throws IOException {
+		String path = newDataPath();
+		openStore(path).write(newData(10));
+		flipByte(new File(path), 10); // Inside the generation
+
+		try {
+			openStore(path);
+			throw new AssertionError("Corrupted manifest was read");
+		} catch (IOException expected) {
+			check(expected.getMessage().contains("checksum does not match"), "unexpected failure: " + expected.getMessage());
+		}
+		check(new File(path + ".1.seg0").isFile(), "segments of a corrupted manifest are kept");
+	}
+
+	/**
+	 * A single serialized map written before segments existed is loaded, and rewritten in segments by the next persist
+	 * */
+	static void legacyFileIsLoaded() throws IOException {
+		String path = newDataPath();
+		HashMap<String, LinkedList<String>> data = new HashMap<>(newData(10));
+		try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(path))) {
+			out.writeObject(data);
+		}
+
+		SegmentStore store = openStore(path);
+		check(store.isLegacy(), "single file is legacy");
+		check(store.loadAll().equals(data), "legacy file is loaded");
+		check(data.get("key3").equals(store.loadKey("key3")), "key is loaded from the legacy file");
+
+		store.write(data);
+		SegmentStore rewritten = openStore(path);
+		check(!rewritten.isLegacy(), "legacy file is rewritten in segments");
+		check(rewritten.loadAll().equals(data), "rewritten data is loaded");
+	}
+
+	private static Map<String, LinkedList<String>> newData(int keysCount){
+		Map<String, LinkedList<String>> data = new HashMap<>();
+		for (int i = 0; i < keysCount; i++){
+			data.put("key" + i, new LinkedList<>(Arrays.asList("value" + i, "value" + keysCount)));
+		}
+		return data;
+	}
+
+	private static String newDataPath() throws IOException {
+		return new File(Files.createTempDirectory("segments").toFile(), "data.ser").getPath();
+	}
+
+	private static SegmentStore openStore(String path) throws IOException {
+		return new SegmentStore(path, new PersistenceCodec(PersistenceCodec.Type.NONE), new PersistenceStats());
+	}
+
+	private static void flipByte(File file, long offset) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+			randomAccessFile.seek(offset);
+			int value = randomAccessFile.read();
+			randomAccessFile.seek(offset);
+			randomAccessFile.write(value ^ 0xFF);
+		}
+	}
+
+	static void check(boolean condition, String message){
+		if (!condition){
+			throw new AssertionError(message);
+		}
+	}
+}
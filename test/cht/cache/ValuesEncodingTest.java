@@ -0,0 +1,43 @@
+package cht.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests of the values encoding of the replication stream, export files and mset, run with java cht.cache.ValuesEncodingTest. Throws AssertionError on a failure.
+ * */
+public class ValuesEncodingTest {
+
+	public static void main(String[] args){
+		valuesRoundTrip();
+		System.out.println("ValuesEncodingTest passed");
+	}
+
+	/**
+	 * Every list decodes to the list that was encoded
+	 * */
+	static void valuesRoundTrip(){
+		List<List<String>> lists = Arrays.asList(
+				new ArrayList<>(),
+				Collections.singletonList(""),
+				Arrays.asList("", ""),
+				Collections.singletonList("%"),
+				Arrays.asList("a,b", "c"),
+				Arrays.asList("100%", "%2C", "%25,", ",", "x"),
+				Arrays.asList("a_b", "_", "%5F", "%255F_"));
+		for (List<String> values : lists){
+			String encoded = ValuesEncoding.encode(values);
+			List<String> decoded = ValuesEncoding.decode(encoded);
+			check(values.equals(decoded), values + " was encoded as " + encoded + " and decoded as " + decoded);
+			check(encoded.indexOf('_') < 0, values + " was encoded with the _ separator as " + encoded);
+		}
+	}
+
+	static void check(boolean condition, String message){
+		if (!condition){
+			throw new AssertionError(message);
+		}
+	}
+}